@@ -0,0 +1,89 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A model of a conditional branch predictor. The kind of predictor comes
+ * from the <tt>BranchPredictor.type</tt> key in <tt>nachos.conf</tt>:
+ *
+ * <ul>
+ * <li><tt>bimodal</tt> (the default): a table of
+ * <tt>BranchPredictor.entries</tt> two-bit saturating counters, indexed by
+ * branch address
+ * <li><tt>taken</tt>: always predict taken
+ * <li><tt>nottaken</tt>: always predict not taken
+ * </ul>
+ *
+ * A misprediction costs <tt>BranchPredictor.penalty</tt> ticks.
+ */
+public final class BranchPredictor {
+    /**
+     * Allocate a new branch predictor.
+     */
+    public BranchPredictor() {
+	String type = Config.getString("BranchPredictor.type", "bimodal");
+
+	if (type.equals("bimodal"))
+	    kind = bimodal;
+	else if (type.equals("taken"))
+	    kind = alwaysTaken;
+	else if (type.equals("nottaken"))
+	    kind = neverTaken;
+	else
+	    Lib.assertNotReached("bad BranchPredictor.type");
+
+	int entries = Config.getInteger("BranchPredictor.entries", 1024);
+	Lib.assertTrue(Integer.bitCount(entries) == 1,
+		       "BranchPredictor.entries must be a power of two");
+
+	// start every counter at weakly not taken
+	counters = new byte[entries];
+	for (int i=0; i<entries; i++)
+	    counters[i] = 1;
+
+	penalty = Config.getInteger("BranchPredictor.penalty", 3);
+	Lib.assertTrue(penalty >= 0);
+    }
+
+    /**
+     * Predict the conditional branch at the specified address, then train
+     * the predictor with its actual outcome.
+     *
+     * @param	pc	the address of the branch.
+     * @param	taken	<tt>true</tt> if the branch was taken.
+     * @return	<tt>true</tt> if the prediction was correct.
+     */
+    public boolean predict(int pc, boolean taken) {
+	switch (kind) {
+	case alwaysTaken:
+	    return taken;
+	case neverTaken:
+	    return !taken;
+	default:
+	    int index = (pc >>> 2) & (counters.length-1);
+	    boolean predicted = counters[index] >= 2;
+
+	    if (taken && counters[index] < 3)
+		counters[index]++;
+	    else if (!taken && counters[index] > 0)
+		counters[index]--;
+
+	    return predicted == taken;
+	}
+    }
+
+    /**
+     * Return the number of ticks a misprediction costs.
+     *
+     * @return	the misprediction penalty.
+     */
+    public int getPenalty() {
+	return penalty;
+    }
+
+    private static final int bimodal = 0, alwaysTaken = 1, neverTaken = 2;
+
+    private int kind;
+    private byte[] counters;
+    private int penalty;
+}
@@ -0,0 +1,82 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Physical memory held in a <tt>ByteBuffer</tt>, usually a direct or mapped
+ * buffer outside the Java heap.
+ *
+ * <p>
+ * Bulk copies move the buffer's position, so a <tt>BufferMemory</tt> must
+ * only be used by one Nachos thread at a time, as with the rest of the
+ * machine.
+ */
+final class BufferMemory extends MainMemory {
+    /**
+     * Allocate a new memory backed by the specified buffer, which is
+     * switched to little-endian byte order.
+     *
+     * @param	buffer	the buffer to use.
+     */
+    BufferMemory(ByteBuffer buffer) {
+	this.buffer = buffer;
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int size() {
+	return buffer.capacity();
+    }
+
+    public boolean hasArray() {
+	return false;
+    }
+
+    public byte[] array() {
+	Lib.assertNotReached("physical memory is not held in an array");
+	return null;
+    }
+
+    public int readWord(int paddr) {
+	return buffer.getInt(paddr);
+    }
+
+    public int readHalf(int paddr) {
+	return buffer.getShort(paddr);
+    }
+
+    public int readByte(int paddr) {
+	return buffer.get(paddr);
+    }
+
+    public void writeWord(int paddr, int value) {
+	buffer.putInt(paddr, value);
+    }
+
+    public void writeHalf(int paddr, int value) {
+	buffer.putShort(paddr, (short) value);
+    }
+
+    public void writeByte(int paddr, int value) {
+	buffer.put(paddr, (byte) value);
+    }
+
+    public void read(int paddr, byte[] data, int offset, int length) {
+	buffer.position(paddr);
+	buffer.get(data, offset, length);
+    }
+
+    public void write(int paddr, byte[] data, int offset, int length) {
+	buffer.position(paddr);
+	buffer.put(data, offset, length);
+    }
+
+    public void fill(int paddr, int length, byte value) {
+	for (int i=0; i<length; i++)
+	    buffer.put(paddr+i, value);
+    }
+
+    private ByteBuffer buffer;
+}
@@ -0,0 +1,87 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A model of a set-associative cache with least-recently-used replacement.
+ * It only tracks which lines are present, so it can tell whether an access
+ * hits; the data itself always comes from main memory.
+ *
+ * <p>
+ * The geometry comes from <tt>nachos.conf</tt>: <i>name</i><tt>.size</tt>
+ * (total bytes), <i>name</i><tt>.associativity</tt>,
+ * <i>name</i><tt>.lineSize</tt> (bytes), and <i>name</i><tt>.missPenalty</tt>
+ * (ticks). The size and line size must be powers of two.
+ */
+public final class CacheModel {
+    /**
+     * Allocate a new, empty cache model.
+     *
+     * @param	name	the prefix of the configuration keys to use.
+     * @param	size	the default total size, in bytes.
+     */
+    public CacheModel(String name, int size) {
+	size = Config.getInteger(name + ".size", size);
+	associativity = Config.getInteger(name + ".associativity", 2);
+	int lineSize = Config.getInteger(name + ".lineSize", 16);
+	missPenalty = Config.getInteger(name + ".missPenalty", 10);
+
+	Lib.assertTrue(Integer.bitCount(size) == 1 &&
+		       Integer.bitCount(lineSize) == 1 &&
+		       associativity > 0 && missPenalty >= 0,
+		       "bad " + name + " configuration");
+	Lib.assertTrue(size >= lineSize*associativity,
+		       name + " is smaller than one set");
+
+	lineShift = Integer.numberOfTrailingZeros(lineSize);
+	numSets = size / (lineSize*associativity);
+
+	// each set is kept in most- to least-recently-used order
+	tags = new int[numSets][associativity];
+	for (int i=0; i<numSets; i++) {
+	    for (int j=0; j<associativity; j++)
+		tags[i][j] = -1;
+	}
+    }
+
+    /**
+     * Look up the line containing the specified physical address, and make
+     * it the most recently used line of its set, loading it if it was not
+     * present.
+     *
+     * @param	paddr	the physical address accessed.
+     * @return	<tt>true</tt> if the access hit.
+     */
+    public boolean access(int paddr) {
+	int line = paddr >>> lineShift;
+	int[] set = tags[line % numSets];
+
+	int way = 0;
+	while (way < associativity && set[way] != line)
+	    way++;
+
+	boolean hit = (way < associativity);
+	if (!hit)
+	    way = associativity-1;
+
+	System.arraycopy(set, 0, set, 1, way);
+	set[0] = line;
+
+	return hit;
+    }
+
+    /**
+     * Return the number of ticks a miss costs.
+     *
+     * @return	the miss penalty.
+     */
+    public int getMissPenalty() {
+	return missPenalty;
+    }
+
+    private int associativity;
+    private int lineShift;
+    private int numSets;
+    private int missPenalty;
+    private int[][] tags;
+}
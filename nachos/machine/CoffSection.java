@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,7 +179,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	MainMemory memory = Machine.processor().getMainMemory();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -196,10 +195,65 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
-	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	if (initlen > 0) {
+	    byte[] buf = new byte[initlen];
+	    Lib.strictReadFile(file, faddr, buf, 0, initlen);
+	    memory.write(paddr, buf, 0, initlen);
+	}
+
+	memory.fill(paddr+initlen, pageSize-initlen, (byte) 0);
+
+	Machine.processor().invalidateDecodedPage(ppn);
+    }
+
+    /**
+     * Load the pages of this segment into physical memory. Unlike calling
+     * <tt>loadPage()</tt> for each page, this reads the initialized part of
+     * the segment with a single read, then copies it to the pages and
+     * zero-fills the rest.
+     *
+     * @param	ppns	the physical page to load each page of the segment
+     *			into, or -1 to leave a page unloaded.
+     */
+    public void loadSection(int[] ppns) {
+	Lib.assertTrue(file != null);
+	Lib.assertTrue(ppns.length == numPages);
+
+	int pageSize = Processor.pageSize;
+	MainMemory memory = Machine.processor().getMainMemory();
+
+	byte[] buf = null;
+	for (int spn=0; spn<numPages && buf == null; spn++) {
+	    if (ppns[spn] != -1 && initialized && size > 0) {
+		buf = new byte[size];
+		Lib.strictReadFile(file, contentOffset, buf, 0, size);
+	    }
+	}
+
+	for (int spn=0; spn<numPages; spn++) {
+	    int ppn = ppns[spn];
+	    if (ppn == -1)
+		continue;
+
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	    int paddr = ppn*pageSize;
+	    int initlen;
+
+	    if (!initialized)
+		initlen = 0;
+	    else if (spn == numPages-1)
+		initlen = (size==pageSize) ? pageSize : (size%pageSize);
+	    else
+		initlen = pageSize;
+
+	    if (initlen > 0)
+		memory.write(paddr, buf, spn*pageSize, initlen);
+
+	    memory.fill(paddr+initlen, pageSize-initlen, (byte) 0);
+
+	    Machine.processor().invalidateDecodedPage(ppn);
+	}
     }
 
     /** The COFF object to which this section belongs. */
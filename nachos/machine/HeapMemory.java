@@ -0,0 +1,80 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Physical memory held in a Java array. Words and halfwords are accessed
+ * through little-endian array views.
+ */
+final class HeapMemory extends MainMemory {
+    /**
+     * Allocate a new zeroed memory of the specified size.
+     *
+     * @param	size	the number of bytes of memory.
+     */
+    HeapMemory(int size) {
+	bytes = new byte[size];
+    }
+
+    public int size() {
+	return bytes.length;
+    }
+
+    public boolean hasArray() {
+	return true;
+    }
+
+    public byte[] array() {
+	return bytes;
+    }
+
+    public int readWord(int paddr) {
+	return (int) wordView.get(bytes, paddr);
+    }
+
+    public int readHalf(int paddr) {
+	return (short) halfView.get(bytes, paddr);
+    }
+
+    public int readByte(int paddr) {
+	return bytes[paddr];
+    }
+
+    public void writeWord(int paddr, int value) {
+	wordView.set(bytes, paddr, value);
+    }
+
+    public void writeHalf(int paddr, int value) {
+	halfView.set(bytes, paddr, (short) value);
+    }
+
+    public void writeByte(int paddr, int value) {
+	bytes[paddr] = (byte) value;
+    }
+
+    public void read(int paddr, byte[] data, int offset, int length) {
+	System.arraycopy(bytes, paddr, data, offset, length);
+    }
+
+    public void write(int paddr, byte[] data, int offset, int length) {
+	System.arraycopy(data, offset, bytes, paddr, length);
+    }
+
+    public void fill(int paddr, int length, byte value) {
+	Arrays.fill(bytes, paddr, paddr+length, value);
+    }
+
+    private byte[] bytes;
+
+    private static final VarHandle wordView =
+	MethodHandles.byteArrayViewVarHandle(int[].class,
+					     ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle halfView =
+	MethodHandles.byteArrayViewVarHandle(short[].class,
+					     ByteOrder.LITTLE_ENDIAN);
+}
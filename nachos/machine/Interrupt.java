@@ -153,6 +153,33 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long userTicksUntilDue() {
+	// the debug output lists every tick
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	if (pending.isEmpty())
+	    return Long.MAX_VALUE;
+
+	long due = pending.first().time;
+	long available = (due - privilege.stats.totalTicks - 1) / Stats.UserTick;
+
+	return Math.max(0, available);
+    }
+
+    private void tickUser(long numTicks) {
+	if (numTicks == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+
+	stats.userTicks += numTicks * Stats.UserTick;
+	stats.totalTicks += numTicks * Stats.UserTick;
+
+	// same as the final state after an ordinary user tick
+	enabled = true;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -249,5 +276,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long userTicksUntilDue() {
+	    return Interrupt.this.userTicksUntilDue();
+	}
+
+	public void tickUser(long numTicks) {
+	    Interrupt.this.tickUser(numTicks);
+	}
     }
 }
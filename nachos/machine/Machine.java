@@ -97,6 +97,13 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	if (profiler != null)
+	    profiler.report();
+
+	if (translationCache != null)
+	    translationCache.saveAll();
+
 	terminate();
     }
 
@@ -173,10 +180,26 @@ public final class Machine {
 	if (Config.getBoolean("Machine.bank"))
 	    bank = new ElevatorBank(privilege);
 
+	String profilerMode = Config.getString("Profiler.mode", null);
+	if (profilerMode != null)
+	    profiler = new Profiler(privilege, profilerMode);
+
 	if (Config.getBoolean("Machine.processor")) {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
+
+	    // Nachos runs exactly one thread at a time (see TCB), so there is
+	    // no way to drive more than one simulated core
+	    int numCores = Config.getInteger("Processor.numCores", 1);
+	    Lib.assertTrue(numCores == 1,
+			   "Processor.numCores: only one core is supported");
+	    
 	    processor = new Processor(privilege, numPhysPages);
+
+	    if (Config.getBoolean("Processor.translationCache", false) &&
+		processor.isTranslating())
+		translationCache = new TranslationCache(privilege,
+							testDirectory);
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
@@ -322,6 +345,22 @@ public final class Machine {
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
     public static Processor processor() { return processor; }
+
+    /**
+     * Return the user program profiler.
+     *
+     * @return	the profiler, or <tt>null</tt> if it is not enabled.
+     */
+    public static Profiler profiler() { return profiler; }
+
+    /**
+     * Return the cache of translated blocks.
+     *
+     * @return	the translation cache, or <tt>null</tt> if it is not enabled.
+     */
+    public static TranslationCache translationCache() {
+	return translationCache;
+    }
     
     /**
      * Return the hardware console.
@@ -355,6 +394,8 @@ public final class Machine {
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Profiler profiler = null;
+    private static TranslationCache translationCache = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
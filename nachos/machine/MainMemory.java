@@ -0,0 +1,326 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+
+/**
+ * The physical memory attached to a simulated processor. Words and
+ * halfwords are stored little-endian, and are read and written whole rather
+ * than a byte at a time.
+ *
+ * <p>
+ * Reads of bytes and halfwords are sign-extended, like
+ * <tt>Lib.bytesToInt()</tt>; callers that want an unsigned value must mask
+ * the result themselves.
+ *
+ * <p>
+ * The memory is held in one of three backends, chosen by the
+ * <tt>Processor.memory</tt> key: <tt>heap</tt> (the default) uses a Java
+ * array; <tt>direct</tt> uses a direct buffer outside the Java heap; and
+ * <tt>mapped</tt> maps the file named by <tt>Processor.memoryFile</tt>. Only
+ * the <tt>heap</tt> backend has an array that can be accessed directly, so
+ * kernels should use the bulk copy methods instead.
+ */
+public abstract class MainMemory {
+    /**
+     * Allocate a new physical memory of the specified size, using the
+     * backend selected by the configuration. The memory is initially zeroed;
+     * a mapped file is truncated first.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	size		the number of bytes of memory.
+     * @return	the new memory.
+     */
+    static MainMemory create(Privilege privilege, int size) {
+	Lib.assertTrue(size >= 0);
+	
+	String backend = Config.getString("Processor.memory", "heap");
+
+	if (backend.equals("heap"))
+	    return new HeapMemory(size);
+	else if (backend.equals("direct"))
+	    return new BufferMemory(ByteBuffer.allocateDirect(size));
+	else if (backend.equals("mapped"))
+	    return new BufferMemory(map(privilege, size));
+
+	Lib.assertNotReached("Processor.memory must be heap, direct or mapped");
+	return null;
+    }
+
+    private static ByteBuffer map(Privilege privilege, final int size) {
+	final String fileName = Config.getString("Processor.memoryFile");
+	Lib.assertTrue(fileName != null,
+		       "Processor.memoryFile must name the file to map");
+
+	try {
+	    return (ByteBuffer) privilege.doPrivileged(
+		new PrivilegedExceptionAction<ByteBuffer>() {
+		    public ByteBuffer run() throws IOException {
+			FileChannel channel =
+			    FileChannel.open(new File(fileName).toPath(),
+					     StandardOpenOption.CREATE,
+					     StandardOpenOption.TRUNCATE_EXISTING,
+					     StandardOpenOption.READ,
+					     StandardOpenOption.WRITE);
+			try {
+			    return channel.map(FileChannel.MapMode.READ_WRITE,
+					       0, size);
+			}
+			finally {
+			    channel.close();
+			}
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("could not map " + fileName + ": "
+				 + e.getException());
+	    return null;
+	}
+    }
+
+    /**
+     * Return the number of bytes in this memory.
+     *
+     * @return	the size of this memory, in bytes.
+     */
+    public abstract int size();
+
+    /**
+     * Return <tt>true</tt> if this memory is backed by an accessible array.
+     *
+     * @return	<tt>true</tt> if <tt>array()</tt> may be called.
+     */
+    public abstract boolean hasArray();
+
+    /**
+     * Return the array backing this memory. Changes to the array are visible
+     * through this memory, and vice versa. Only valid if
+     * <tt>hasArray()</tt> returns <tt>true</tt>.
+     *
+     * @return	the backing array.
+     */
+    public abstract byte[] array();
+
+    /**
+     * Read the 32-bit word at the specified physical address.
+     *
+     * @param	paddr	the address of the word.
+     * @return	the word.
+     */
+    public abstract int readWord(int paddr);
+
+    /**
+     * Read the halfword at the specified physical address, sign-extended.
+     *
+     * @param	paddr	the address of the halfword.
+     * @return	the halfword, sign-extended to 32 bits.
+     */
+    public abstract int readHalf(int paddr);
+
+    /**
+     * Read the byte at the specified physical address, sign-extended.
+     *
+     * @param	paddr	the address of the byte.
+     * @return	the byte, sign-extended to 32 bits.
+     */
+    public abstract int readByte(int paddr);
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes at the specified physical address.
+     * Bytes and halfwords are sign-extended.
+     *
+     * @param	paddr	the address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return	the value read.
+     */
+    public int read(int paddr, int size) {
+	switch (size) {
+	case 4:
+	    return readWord(paddr);
+	case 2:
+	    return readHalf(paddr);
+	case 1:
+	    return readByte(paddr);
+	default:
+	    Lib.assertNotReached("bad size " + size);
+	    return -1;
+	}
+    }
+
+    /**
+     * Write a 32-bit word to the specified physical address.
+     *
+     * @param	paddr	the address of the word.
+     * @param	value	the word to write.
+     */
+    public abstract void writeWord(int paddr, int value);
+
+    /**
+     * Write the low 16 bits of <i>value</i> to the specified physical
+     * address.
+     *
+     * @param	paddr	the address of the halfword.
+     * @param	value	the value to write.
+     */
+    public abstract void writeHalf(int paddr, int value);
+
+    /**
+     * Write the low 8 bits of <i>value</i> to the specified physical address.
+     *
+     * @param	paddr	the address of the byte.
+     * @param	value	the value to write.
+     */
+    public abstract void writeByte(int paddr, int value);
+
+    /**
+     * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to the
+     * specified physical address.
+     *
+     * @param	paddr	the address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to write.
+     */
+    public void write(int paddr, int size, int value) {
+	switch (size) {
+	case 4:
+	    writeWord(paddr, value);
+	    break;
+	case 2:
+	    writeHalf(paddr, value);
+	    break;
+	case 1:
+	    writeByte(paddr, value);
+	    break;
+	default:
+	    Lib.assertNotReached("bad size " + size);
+	}
+    }
+
+    /**
+     * Copy <i>length</i> bytes starting at physical address <i>paddr</i>
+     * into the specified array.
+     *
+     * @param	paddr	the first byte of memory to copy.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public abstract void read(int paddr, byte[] data, int offset, int length);
+
+    /**
+     * Copy <i>length</i> bytes from the specified array into memory,
+     * starting at physical address <i>paddr</i>.
+     *
+     * @param	paddr	the first byte of memory to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte to copy from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public abstract void write(int paddr, byte[] data, int offset, int length);
+
+    /**
+     * Set <i>length</i> bytes starting at physical address <i>paddr</i> to
+     * the specified value.
+     *
+     * @param	paddr	the first byte of memory to set.
+     * @param	length	the number of bytes to set.
+     * @param	value	the value to store in each byte.
+     */
+    public abstract void fill(int paddr, int length, byte value);
+
+    /**
+     * Read up to <i>length</i> bytes from a file into memory, starting at
+     * physical address <i>paddr</i>. If this memory has an array, the file
+     * reads into it in place; otherwise the bytes are staged through a
+     * buffer of at most one page. The transfer stops at the first read the
+     * file does not complete.
+     *
+     * @param	file	the file or stream to read.
+     * @param	pos	the position in the file to read from, or -1 to read
+     *			from the current position, as a stream must be read.
+     * @param	paddr	the first byte of memory to write.
+     * @param	length	the number of bytes to read.
+     * @return	the number of bytes read, or -1 if the file failed before
+     *		reading anything.
+     */
+    public int readFrom(OpenFile file, int pos, int paddr, int length) {
+	if (hasArray()) {
+	    return pos < 0 ? file.read(array(), paddr, length)
+		: file.read(pos, array(), paddr, length);
+	}
+
+	byte[] staging = new byte[Math.min(length, Processor.pageSize)];
+	int done = 0;
+
+	while (done < length) {
+	    int requested = Math.min(length - done, staging.length);
+	    int amount = pos < 0 ? file.read(staging, 0, requested)
+		: file.read(pos + done, staging, 0, requested);
+
+	    if (amount < 0)
+		return done == 0 ? -1 : done;
+
+	    write(paddr + done, staging, 0, amount);
+	    done += amount;
+
+	    if (amount < requested)
+		break;
+	}
+
+	return done;
+    }
+
+    /**
+     * Write up to <i>length</i> bytes of memory, starting at physical
+     * address <i>paddr</i>, to a file. If this memory has an array, the file
+     * writes from it in place; otherwise the bytes are staged through a
+     * buffer of at most one page. The transfer stops at the first write the
+     * file does not complete.
+     *
+     * @param	file	the file or stream to write.
+     * @param	pos	the position in the file to write to, or -1 to write
+     *			at the current position, as a stream must be written.
+     * @param	paddr	the first byte of memory to read.
+     * @param	length	the number of bytes to write.
+     * @return	the number of bytes written, or -1 if the file failed before
+     *		writing anything.
+     */
+    public int writeTo(OpenFile file, int pos, int paddr, int length) {
+	if (hasArray()) {
+	    return pos < 0 ? file.write(array(), paddr, length)
+		: file.write(pos, array(), paddr, length);
+	}
+
+	byte[] staging = new byte[Math.min(length, Processor.pageSize)];
+	int done = 0;
+
+	while (done < length) {
+	    int requested = Math.min(length - done, staging.length);
+	    read(paddr + done, staging, 0, requested);
+
+	    int amount = pos < 0 ? file.write(staging, 0, requested)
+		: file.write(pos + done, staging, 0, requested);
+
+	    if (amount < 0)
+		return done == 0 ? -1 : done;
+
+	    done += amount;
+
+	    if (amount < requested)
+		break;
+	}
+
+	return done;
+    }
+}
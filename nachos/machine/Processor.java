@@ -45,7 +45,12 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	// physical addresses are ints
+	Lib.assertTrue(numPhysPages <= Integer.MAX_VALUE / pageSize,
+		       "too many physical pages");
+	
+	mainMemory = MainMemory.create(privilege, pageSize * numPhysPages);
+	decodedPages = new DecodedInstruction[numPhysPages][];
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -55,6 +60,32 @@ public final class Processor {
 	else {
 	    translations = null;
 	}
+
+	translationThreshold =
+	    Config.getInteger("Processor.translationThreshold", 16);
+
+	// disassembly and processor traces need every instruction to go
+	// through the interpreter
+	translating = translationThreshold > 0 && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble);
+
+	// traces show every translation
+	cachingTranslations = !Lib.test(dbgProcessor);
+
+	// the timing model watches every access, so it needs the interpreter
+	modelling = Config.getBoolean("Processor.timingModel", false);
+	if (modelling) {
+	    icache = new CacheModel("ICache", 4096);
+	    dcache = new CacheModel("DCache", 4096);
+	    predictor = new BranchPredictor();
+	    translating = false;
+	}
+
+	profiler = Machine.profiler();
+	if (profiler != null) {
+	    sampling = profiler.isSampling();
+	    countingBlocks = !profiler.isSampling();
+	}
     }
 
     /**
@@ -94,14 +125,47 @@ public final class Processor {
 	Instruction inst = new Instruction();
 	
 	while (true) {
+	    // run every instruction whose tick cannot make an interrupt due,
+	    // charging those ticks in bulk, and then one more instruction that
+	    // gets a full tick
+	    long batch = privilege.interrupt.userTicksUntilDue();
+	    long executed = 0;
+
+	    // stalls must be charged after every instruction
+	    if (modelling)
+		batch = 0;
+
+	    if (sampling) {
+		long untilSample =
+		    profiler.userTicksUntilSample(privilege.stats.userTicks);
+		batch = Math.min(batch, untilSample);
+	    }
+
 	    try {
-		inst.run();
+		while (executed < batch)
+		    executed += inst.run(batch - executed >= 2);
+
+		inst.run(false);
 	    }
 	    catch (MipsException e) {
+		// the kernel must see the time at which the exception occurred
+		privilege.interrupt.tickUser(executed);
+		executed = 0;
+		chargeStall();
+
 		e.handle();
+		flushTranslationCache();
 	    }
 
+	    privilege.interrupt.tickUser(executed);
+	    chargeStall();
 	    privilege.interrupt.tick(false);
+
+	    // an interrupt handler may have changed any translation
+	    flushTranslationCache();
+
+	    if (sampling)
+		profiler.sample(privilege.stats.userTicks, registers[regPC]);
 	}
     }
 
@@ -175,6 +239,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushTranslationCache();
     }
 
     /**
@@ -216,6 +281,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	flushTranslationCache();
     }
 
     /**
@@ -230,11 +296,24 @@ public final class Processor {
 
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. Only available when the
+     * memory is held on the Java heap; <tt>getMainMemory()</tt> works with
+     * every backend.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	return mainMemory.array();
+    }
+
+    /**
+     * Return the physical memory attached to this processor, which supports
+     * whole-word access and bulk copies. This is the same memory as
+     * <tt>getMemory()</tt>.
+     *
+     * @return	the main memory.
+     */
+    public MainMemory getMainMemory() {
 	return mainMemory;
     }
 
@@ -262,7 +341,7 @@ public final class Processor {
      * @return	the page number component of the address.
      */
     public static int pageFromAddress(int address) {
-	return (int) (((long) address & 0xFFFFFFFFL) / pageSize);
+	return address >>> pageShift;
     }
 
     /**
@@ -272,7 +351,489 @@ public final class Processor {
      * @return	the offset component of the address.
      */
     public static int offsetFromAddress(int address) {
-	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
+	return address & (pageSize-1);
+    }
+
+    /**
+     * Return the decoded form of the instruction word stored at the specified
+     * physical address, decoding it and caching the result if necessary.
+     *
+     * <p>
+     * Cached entries are kept per physical page, and are tagged with the raw
+     * instruction word they were decoded from, so an entry is never used
+     * after the word it describes has been overwritten (even by a kernel
+     * writing directly into <tt>getMemory()</tt>).
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @param	value	the instruction word at that address.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction decodeCached(int paddr, int value) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize / 4];
+	    decodedPages[ppn] = page;
+	}
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard any cached decoded instructions for the word containing the
+     * specified physical address.
+     *
+     * @param	paddr	the physical address that was written.
+     */
+    private void invalidateDecoded(int paddr) {
+	DecodedInstruction[] page = decodedPages[paddr / pageSize];
+	if (page != null)
+	    page[(paddr % pageSize) / 4] = null;
+    }
+
+    /**
+     * Discard all cached decoded instructions for the specified physical
+     * page. Called whenever the contents of the page are replaced wholesale,
+     * e.g. by <tt>CoffSection.loadPage()</tt>.
+     *
+     * @param	ppn	the physical page whose contents changed.
+     */
+    void invalidateDecodedPage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+    }
+
+    /**
+     * Return <tt>true</tt> if this processor translates hot blocks.
+     *
+     * @return	<tt>true</tt> if blocks are translated.
+     */
+    boolean isTranslating() {
+	return translating;
+    }
+
+    /**
+     * Translate the basic block starting at the specified physical address
+     * now, as if it had already started <tt>translationThreshold</tt> times.
+     * Used to restore translations saved by an earlier run.
+     *
+     * @param	paddr	the word-aligned physical address of the first
+     *			instruction in the block.
+     */
+    void translateBlockAt(int paddr) {
+	Lib.assertTrue(translating);
+	Lib.assertTrue(paddr >= 0 && paddr < numPhysPages*pageSize &&
+		       (paddr & 3) == 0);
+
+	DecodedInstruction decoded =
+	    decodeCached(paddr, mainMemory.readWord(paddr));
+
+	if (decoded.executions < translationThreshold) {
+	    decoded.executions = translationThreshold;
+	    translateBlock(paddr);
+	}
+    }
+
+    /**
+     * Return the offsets within the specified physical page of every block
+     * that has been translated and still holds the code it was translated
+     * from.
+     *
+     * @param	ppn	the physical page to look at.
+     * @return	the byte offsets of the translated blocks, in increasing
+     *		order.
+     */
+    int[] getTranslatedBlocks(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (!translating || page == null)
+	    return new int[0];
+
+	int[] offsets = new int[page.length];
+	int count = 0;
+
+	for (int i=0; i<page.length; i++) {
+	    DecodedInstruction decoded = page[i];
+	    int paddr = ppn*pageSize + i*4;
+	    
+	    if (decoded != null &&
+		decoded.executions >= translationThreshold &&
+		decoded.value == mainMemory.readWord(paddr))
+		offsets[count++] = i*4;
+	}
+
+	int[] result = new int[count];
+	System.arraycopy(offsets, 0, result, 0, count);
+	return result;
+    }
+
+    /**
+     * Translate the basic block starting at the specified physical address.
+     * Every instruction in the block that has a specialised handler gets one
+     * attached to its cached decoded form. The block ends after the delay
+     * slot of the first branch or jump, at the first trapping instruction, or
+     * at the end of the physical page, whichever comes first.
+     *
+     * @param	paddr	the physical address of the first instruction in the
+     *			block.
+     */
+    private void translateBlock(int paddr) {
+	int pageEnd = (paddr / pageSize + 1) * pageSize;
+	boolean delaySlot = false;
+	DecodedInstruction previous = null;
+
+	for (int i=0; i<maxBlockLength && paddr<pageEnd; i++, paddr+=4) {
+	    DecodedInstruction decoded =
+		decodeCached(paddr, mainMemory.readWord(paddr));
+
+	    if (decoded.translation == null)
+		decoded.translation = compile(decoded);
+
+	    if (previous != null) {
+		previous.fused = fuse(previous, decoded);
+		previous.fusedValue = decoded.value;
+	    }
+	    previous = decoded;
+
+	    if (delaySlot)
+		break;
+
+	    if (Lib.test(Mips.BRANCH, decoded.flags))
+		delaySlot = true;
+	    else if (decoded.operation == Mips.SYSCALL ||
+		     decoded.operation == Mips.UNIMPL ||
+		     decoded.operation == Mips.INVALID)
+		break;
+	}
+    }
+
+    /**
+     * Return a single handler that runs the specified pair of consecutive
+     * instructions, or <tt>null</tt> if they are not one of the idioms worth
+     * fusing: a constant built with <tt>lui</tt> and <tt>ori</tt> or
+     * <tt>addiu</tt>, a load followed by an instruction that reads the loaded
+     * register, or a set-on-less-than followed by a <tt>beq</tt> or
+     * <tt>bne</tt> that tests its result.
+     *
+     * <p>
+     * The fused handler runs the two translated handlers back to back, so
+     * register, delayed-load and exception results are the same as running
+     * them one at a time. The second instruction is never one that can trap,
+     * so a trap always leaves the pair with nothing retired.
+     *
+     * @param	first	the first instruction.
+     * @param	second	the instruction immediately after it.
+     * @return	a handler for the pair, or <tt>null</tt>.
+     */
+    private TranslatedInstruction fuse(DecodedInstruction first,
+				       DecodedInstruction second) {
+	if (first.translation == null || second.translation == null ||
+	    Lib.test(Mips.BRANCH, first.flags) ||
+	    second.operation == Mips.LOAD || second.operation == Mips.STORE)
+	    return null;
+
+	int target = first.dstReg;
+	boolean readsTarget = target != 0 &&
+	    (second.rs == target ||
+	     (second.rt == target && !Lib.test(Mips.SRC2IMM, second.flags)));
+	boolean fusable;
+	
+	switch (first.operation) {
+	case Mips.LUI:
+	    fusable = readsTarget && Lib.test(Mips.SRC2IMM, second.flags) &&
+		(second.operation == Mips.OR || second.operation == Mips.ADD);
+	    break;
+	case Mips.LOAD:
+	    fusable = readsTarget && !Lib.test(Mips.BRANCH, second.flags);
+	    break;
+	case Mips.SLT:
+	    fusable = readsTarget &&
+		(second.operation == Mips.BEQ || second.operation == Mips.BNE);
+	    break;
+	default:
+	    fusable = false;
+	}
+
+	if (!fusable)
+	    return null;
+
+	final TranslatedInstruction a = first.translation;
+	final TranslatedInstruction b = second.translation;
+
+	return new TranslatedInstruction() {
+		void run() throws MipsException {
+		    a.run();
+		    b.run();
+		}
+	    };
+    }
+
+    /**
+     * Complete the in-progress delayed load, write the result of a non-branch
+     * instruction, and advance the PC, exactly as
+     * <tt>Instruction.writeBack()</tt> would.
+     *
+     * @param	dstReg	the destination register.
+     * @param	value	the value to write into it.
+     */
+    private void retire(int dstReg, int value) {
+	finishLoad();
+
+	if (dstReg != 0)
+	    registers[dstReg] = value;
+
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * Complete the in-progress delayed load and advance the PC past a branch
+     * or jump, exactly as <tt>Instruction.writeBack()</tt> would.
+     *
+     * @param	taken	<tt>true</tt> if the branch is taken.
+     * @param	target	the branch target.
+     */
+    private void retireBranch(boolean taken, int target) {
+	int nextPC = taken ? target : registers[regNextPC]+4;
+
+	finishLoad();
+	advancePC(nextPC);
+
+	blockHeadCountdown = 2;
+    }
+
+    /**
+     * Return a handler specialised for the specified instruction, or
+     * <tt>null</tt> if the instruction should always be interpreted.
+     * Instructions that can overflow, multiply or divide, trap, or link
+     * through a conditional branch are left to the interpreter.
+     *
+     * @param	d	the instruction to compile.
+     * @return	a handler with the same effect as interpreting <tt>d</tt>.
+     */
+    private TranslatedInstruction compile(DecodedInstruction d) {
+	final int rs = d.rs, rt = d.rt, rd = d.rd, sh = d.sh, imm = d.imm;
+	final int dstReg = d.dstReg, size = d.size;
+	final int branchOffset = d.branchOffset;
+	final boolean immediate = Lib.test(Mips.SRC2IMM, d.flags);
+	final boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+
+	if (Lib.test(Mips.OVERFLOW, d.flags))
+	    return null;
+	
+	switch (d.operation) {
+	case Mips.ADD:
+	    if (immediate)
+		return new TranslatedInstruction() {
+			void run() {
+			    retire(dstReg, registers[rs] + imm);
+			}
+		    };
+	    return new TranslatedInstruction() {
+		    void run() {
+			retire(dstReg, registers[rs] + registers[rt]);
+		    }
+		};
+	case Mips.SUB:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retire(dstReg, registers[rs] - registers[rt]);
+		    }
+		};
+	case Mips.AND:
+	    if (immediate)
+		return new TranslatedInstruction() {
+			void run() {
+			    retire(dstReg, registers[rs] & imm);
+			}
+		    };
+	    return new TranslatedInstruction() {
+		    void run() {
+			retire(dstReg, registers[rs] & registers[rt]);
+		    }
+		};
+	case Mips.OR:
+	    if (immediate)
+		return new TranslatedInstruction() {
+			void run() {
+			    retire(dstReg, registers[rs] | imm);
+			}
+		    };
+	    return new TranslatedInstruction() {
+		    void run() {
+			retire(dstReg, registers[rs] | registers[rt]);
+		    }
+		};
+	case Mips.XOR:
+	    if (immediate)
+		return new TranslatedInstruction() {
+			void run() {
+			    retire(dstReg, registers[rs] ^ imm);
+			}
+		    };
+	    return new TranslatedInstruction() {
+		    void run() {
+			retire(dstReg, registers[rs] ^ registers[rt]);
+		    }
+		};
+	case Mips.NOR:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retire(dstReg, ~(registers[rs] | registers[rt]));
+		    }
+		};
+	case Mips.SLT:
+	    if (unsigned)
+		return new TranslatedInstruction() {
+			void run() {
+			    int src2 = immediate ? imm : registers[rt];
+			    retire(dstReg, (Integer.compareUnsigned(
+				registers[rs], src2) < 0) ? 1 : 0);
+			}
+		    };
+	    return new TranslatedInstruction() {
+		    void run() {
+			int src2 = immediate ? imm : registers[rt];
+			retire(dstReg, (registers[rs] < src2) ? 1 : 0);
+		    }
+		};
+	case Mips.LUI:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retire(dstReg, imm << 16);
+		    }
+		};
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	    final int operation = d.operation;
+	    final boolean constantShift = Lib.test(Mips.SRC1SH, d.flags);
+	    return new TranslatedInstruction() {
+		    void run() {
+			int amount = (constantShift ? sh : registers[rs]) & 0x1F;
+			long src2 = registers[rt];
+			long dst;
+			if (operation == Mips.SLL)
+			    dst = src2 << amount;
+			else if (operation == Mips.SRA)
+			    dst = src2 >> amount;
+			else
+			    dst = src2 >>> amount;
+			retire(dstReg, (int) dst);
+		    }
+		};
+	case Mips.MFLO:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retire(dstReg, registers[regLo]);
+		    }
+		};
+	case Mips.MFHI:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retire(dstReg, registers[regHi]);
+		    }
+		};
+	case Mips.LOAD:
+	    return new TranslatedInstruction() {
+		    void run() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+			if (!unsigned)
+			    value = Lib.extend(value, 0, size*8);
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+			advancePC(registers[regNextPC]+4);
+		    }
+		};
+	case Mips.STORE:
+	    return new TranslatedInstruction() {
+		    void run() throws MipsException {
+			writeMem(registers[rs] + imm, size, registers[rt]);
+			finishLoad();
+			advancePC(registers[regNextPC]+4);
+		    }
+		};
+	case Mips.BEQ:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retireBranch(registers[rs] == registers[rt],
+				     registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.BNE:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retireBranch(registers[rs] != registers[rt],
+				     registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.JUMP:
+	    final boolean link = Lib.test(Mips.DST, d.flags);
+	    if (d.format == Mips.JFMT)
+		return new TranslatedInstruction() {
+			void run() {
+			    int nextPC = registers[regNextPC]+4;
+			    retireBranch(true,
+					 (registers[regNextPC]&0xF0000000) |
+					 branchOffset);
+			    if (link)
+				registers[regRA] = nextPC;
+			}
+		    };
+	    return new TranslatedInstruction() {
+		    void run() {
+			int nextPC = registers[regNextPC]+4;
+			retireBranch(true, registers[rs]);
+			if (link && dstReg != 0)
+			    registers[dstReg] = nextPC;
+		    }
+		};
+	}
+
+	// conditional branches that link are left to the interpreter
+	if (Lib.test(Mips.LINK, d.flags))
+	    return null;
+
+	switch (d.operation) {
+	case Mips.BLEZ:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retireBranch(registers[rs] <= 0,
+				     registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.BGTZ:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retireBranch(registers[rs] > 0,
+				     registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.BLTZ:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retireBranch(registers[rs] < 0,
+				     registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.BGEZ:
+	    return new TranslatedInstruction() {
+		    void run() {
+			retireBranch(registers[rs] >= 0,
+				     registers[regNextPC] + branchOffset);
+		    }
+		};
+	}
+
+	return null;
     }
 
     private void finishLoad() {
@@ -301,7 +862,7 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw trap(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -317,7 +878,7 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw trap(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
@@ -333,26 +894,27 @@ public final class Processor {
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw trap(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw trap(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw trap(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
-	entry.used = true;
-	if (writing)
+	if (!entry.used)
+	    entry.used = true;
+	if (writing && !entry.dirty)
 	    entry.dirty = true;
 
 	int paddr = (ppn*pageSize) + offset;
@@ -362,6 +924,147 @@ public final class Processor {
 	return paddr;
     }
 
+    /**
+     * Translate the virtual address of an instruction fetch. If the address
+     * is on the same virtual page as the last fetch, the cached translation
+     * is used; otherwise this is the same as <tt>translate(vaddr, 4,
+     * false)</tt>.
+     *
+     * @param	vaddr	the virtual address of the instruction.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translateFetch(int vaddr) throws MipsException {
+	if ((vaddr >>> pageShift) == fetchVPN && (vaddr & 3) == 0)
+	    return fetchBase | (vaddr & (pageSize-1));
+
+	int paddr = translate(vaddr, 4, false);
+
+	if (cachingTranslations) {
+	    fetchVPN = vaddr >>> pageShift;
+	    fetchBase = paddr & ~(pageSize-1);
+	}
+
+	return paddr;
+    }
+
+    /**
+     * Translate the virtual address of a load or store. If the address is on
+     * the same virtual page as the last data reference, the cached
+     * translation is used; otherwise this is the same as <tt>translate()</tt>.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translateData(int vaddr, int size, boolean writing)
+	throws MipsException {
+	if ((vaddr >>> pageShift) == dataVPN && (vaddr & (size-1)) == 0 &&
+	    (dataWritten || !writing))
+	    return dataBase | (vaddr & (pageSize-1));
+
+	int paddr = translate(vaddr, size, writing);
+
+	if (cachingTranslations) {
+	    if ((vaddr >>> pageShift) != dataVPN)
+		dataWritten = false;
+	    
+	    dataVPN = vaddr >>> pageShift;
+	    dataBase = paddr & ~(pageSize-1);
+	    dataWritten |= writing;
+	}
+
+	return paddr;
+    }
+
+    /**
+     * Advance the simulated time by the ticks the timing model has charged
+     * since the last call. Ticks are charged in bulk only up to the next
+     * pending interrupt; the tick that makes it due goes through
+     * <tt>tick()</tt>, so an interrupt that falls due during a stall is
+     * handled on time.
+     */
+    private void chargeStall() {
+	if (stallTicks == 0)
+	    return;
+
+	privilege.stats.stallTicks += stallTicks;
+
+	long remaining = stallTicks / Stats.UserTick;
+	stallTicks = 0;
+
+	while (remaining > 0) {
+	    long batch = Math.min(remaining,
+				  privilege.interrupt.userTicksUntilDue());
+
+	    if (batch > 0) {
+		privilege.interrupt.tickUser(batch);
+		remaining -= batch;
+	    }
+	    else {
+		privilege.interrupt.tick(false);
+		remaining--;
+	    }
+	}
+    }
+
+    /**
+     * Run an access to the specified physical address through a cache
+     * model, counting the result and charging a stall on a miss.
+     *
+     * @param	cache	the cache to access.
+     * @param	paddr	the physical address accessed.
+     * @param	instruction	<tt>true</tt> if this is an instruction fetch.
+     */
+    private void modelAccess(CacheModel cache, int paddr,
+			     boolean instruction) {
+	Stats stats = privilege.stats;
+	
+	if (cache.access(paddr)) {
+	    if (instruction)
+		stats.numICacheHits++;
+	    else
+		stats.numDCacheHits++;
+	}
+	else {
+	    if (instruction)
+		stats.numICacheMisses++;
+	    else
+		stats.numDCacheMisses++;
+
+	    stallTicks += cache.getMissPenalty();
+	}
+    }
+
+    /**
+     * Run a conditional branch through the branch predictor, counting the
+     * result and charging a stall on a misprediction.
+     *
+     * @param	pc	the address of the branch.
+     * @param	taken	<tt>true</tt> if the branch was taken.
+     */
+    private void modelBranch(int pc, boolean taken) {
+	privilege.stats.numBranches++;
+
+	if (!predictor.predict(pc, taken)) {
+	    privilege.stats.numBranchMispredictions++;
+	    stallTicks += predictor.getPenalty();
+	}
+    }
+
+    /**
+     * Forget the cached fetch and data translations. Called whenever the
+     * kernel might have changed a translation entry: when the page table or
+     * TLB is changed, and after any exception or interrupt handler has run.
+     */
+    private void flushTranslationCache() {
+	fetchVPN = -1;
+	dataVPN = -1;
+	dataWritten = false;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -376,10 +1079,11 @@ public final class Processor {
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
+	int paddr = translateData(vaddr, size, false);
+	if (modelling)
+	    modelAccess(dcache, paddr, false);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = mainMemory.read(paddr, size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -404,10 +1108,13 @@ public final class Processor {
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
+	int paddr = translateData(vaddr, size, true);
+	if (modelling)
+	    modelAccess(dcache, paddr, false);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	mainMemory.write(paddr, size, value);
+
+	invalidateDecoded(paddr);
     }
 
     /**
@@ -549,12 +1256,71 @@ public final class Processor {
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
+    /** Number of bits in a page offset. */
+    private static final int pageShift = Integer.numberOfTrailingZeros(pageSize);
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
-    private byte[] mainMemory;
+    private MainMemory mainMemory;
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page. Pages that have never been executed from are <tt>null</tt>.
+     */
+    private DecodedInstruction[][] decodedPages;
+
+    /**
+     * The number of times a basic block must start executing before it is
+     * translated, or 0 if blocks are never translated.
+     */
+    private int translationThreshold;
+    /** <tt>true</tt> if hot blocks should be translated and run. */
+    private boolean translating;
+    /** The maximum number of instructions in a translated block. */
+    private static final int maxBlockLength = 64;
+    /**
+     * Counts down the instructions until the start of the next basic block,
+     * which is the instruction after a branch's delay slot.
+     */
+    private int blockHeadCountdown = 0;
+
+    /**
+     * <tt>true</tt> if the last fetch and data translations should be cached.
+     * Caching is off when every translation is traced.
+     */
+    private boolean cachingTranslations;
+    /** The virtual page of the last instruction fetch, or -1 if none. */
+    private int fetchVPN = -1;
+    /** The physical address of the start of page <tt>fetchVPN</tt>. */
+    private int fetchBase;
+    /** The virtual page of the last load or store, or -1 if none. */
+    private int dataVPN = -1;
+    /** The physical address of the start of page <tt>dataVPN</tt>. */
+    private int dataBase;
+    /** <tt>true</tt> if page <tt>dataVPN</tt> has been marked dirty. */
+    private boolean dataWritten = false;
+
+    /** The user program profiler, or <tt>null</tt> if not profiling. */
+    private Profiler profiler;
+    /** <tt>true</tt> if the profiler samples the PC periodically. */
+    private boolean sampling = false;
+    /** <tt>true</tt> if the profiler counts every basic block. */
+    private boolean countingBlocks = false;
+
+    /** <tt>true</tt> if the cache and branch predictor model is enabled. */
+    private boolean modelling;
+    /** The instruction cache model, if modelling. */
+    private CacheModel icache;
+    /** The data cache model, if modelling. */
+    private CacheModel dcache;
+    /** The branch predictor model, if modelling. */
+    private BranchPredictor predictor;
+    /** Stall ticks charged by the model but not yet added to the time. */
+    private long stallTicks = 0;
+
+    /** The record thrown for every user exception. */
+    private final MipsException trapRecord = new MipsException();
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -569,21 +1335,54 @@ public final class Processor {
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Fill in this processor's trap record to describe an exception with no
+     * bad virtual address, and return it to be thrown.
+     *
+     * @param	cause	the exception cause.
+     * @return	the trap record.
+     */
+    private MipsException trap(int cause) {
+	return trapRecord.set(cause, false, 0);
+    }
 
-	    this.cause = cause;
+    /**
+     * Fill in this processor's trap record to describe an exception caused
+     * by the specified virtual address, and return it to be thrown.
+     *
+     * @param	cause		the exception cause.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the trap record.
+     */
+    private MipsException trap(int cause, int badVAddr) {
+	return trapRecord.set(cause, true, badVAddr);
+    }
+
+    /**
+     * A user exception. Each processor throws the same preallocated instance
+     * for every exception, so it has no stack trace, and <tt>handle()</tt>
+     * reads the fields before running any kernel code that might trap again.
+     */
+    private class MipsException extends Exception {
+	public MipsException() {
+	    super(null, null, false, false);
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	public MipsException set(int cause, boolean hasBadVAddr, int badVAddr) {
+	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    hasBadVAddr = true;
+	    this.cause = cause;
+	    this.hasBadVAddr = hasBadVAddr;
 	    this.badVAddr = badVAddr;
+
+	    return this;
 	}
 
 	public void handle() {
+	    int cause = this.cause;
+	    boolean hasBadVAddr = this.hasBadVAddr;
+	    int badVAddr = this.badVAddr;
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -608,12 +1407,51 @@ public final class Processor {
     }	
 
     private class Instruction {
-	public void run() throws MipsException {
+	/**
+	 * Run the instruction at the PC, or, if <i>fuse</i> is <tt>true</tt>,
+	 * possibly that instruction and the one after it.
+	 *
+	 * @param	fuse	<tt>true</tt> if two instructions may be run.
+	 * @return	the number of instructions run.
+	 */
+	public int run(boolean fuse) throws MipsException {
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
-	    decode();
+
+	    DecodedInstruction info = decodeCached(paddr, value);
+
+	    boolean blockHead = (blockHeadCountdown == 1);
+	    if (blockHeadCountdown > 0)
+		blockHeadCountdown--;
+
+	    if (blockHead && countingBlocks)
+		profiler.countBlock(registers[regPC]);
+
+	    if (translating) {
+		if (info.translation != null) {
+		    // the second instruction must follow the first, must not
+		    // start a block, and must not have changed since fusing
+		    if (fuse && info.fused != null && blockHeadCountdown == 0 &&
+			registers[regNextPC] == registers[regPC]+4 &&
+			(paddr & (pageSize-1)) != pageSize-4 &&
+			mainMemory.readWord(paddr+4) == info.fusedValue) {
+			info.fused.run();
+			return 2;
+		    }
+		    
+		    info.translation.run();
+		    return 1;
+		}
+
+		if (blockHead && ++info.executions == translationThreshold)
+		    translateBlock(paddr);
+	    }
+	    
+	    decode(info);
 	    execute();
 	    writeBack();
+
+	    return 1;
 	}	
 
 	private boolean test(int flag) {
@@ -626,78 +1464,55 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    paddr = translateFetch(registers[regPC]);
+	    value = mainMemory.readWord(paddr);
+
+	    if (modelling)
+		modelAccess(icache, paddr, true);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	private void decode(DecodedInstruction info) {
+	    op = info.op;
+	    rs = info.rs;
+	    rt = info.rt;
+	    rd = info.rd;
+	    sh = info.sh;
+	    func = info.func;
+	    imm = info.imm;
 
 	    operation = info.operation;
 	    name = info.name;
 	    format = info.format;
 	    flags = info.flags;
 
+	    size = info.size;
+	    dstReg = info.dstReg;
+
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + info.branchOffset;
 	    else if (format == Mips.JFMT)
-		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+		jtarget = (registers[regNextPC]&0xF0000000) | info.branchOffset;
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -869,7 +1684,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw trap(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +1754,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw trap(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +1824,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw trap(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +1834,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw trap(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1040,8 +1855,15 @@ public final class Processor {
 		}
 	    }
 
-	    if (test(Mips.BRANCH) && branch) {
-		nextPC = jtarget;
+	    if (test(Mips.BRANCH)) {
+		if (modelling && operation != Mips.JUMP)
+		    modelBranch(registers[regPC], branch);
+		
+		if (branch)
+		    nextPC = jtarget;
+
+		// the instruction after the delay slot starts a basic block
+		blockHeadCountdown = 2;
 	    }
 
 	    advancePC(nextPC);
@@ -1052,7 +1874,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1885,110 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A single instruction of a translated basic block. Running it has exactly
+     * the same effect on the registers, memory and delayed load as running
+     * the instruction through <tt>Instruction</tt>.
+     */
+    private abstract class TranslatedInstruction {
+	abstract void run() throws MipsException;
+    }
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word itself, and not on the contents of any register.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    int target = Lib.extract(value, 0, 26);
+	    int imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get the register-independent part of jtarget
+	    if (format == Mips.IFMT)
+		branchOffset = imm<<2;
+	    else if (format == Mips.JFMT)
+		branchOffset = target<<2;
+	    else
+		branchOffset = 0;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm &= 0xFFFF;
+
+	    this.imm = imm;
+	}
+
+	/** The instruction word this was decoded from. */
+	final int value;
+
+	/**
+	 * The number of times this instruction has started a basic block,
+	 * until the block is translated.
+	 */
+	int executions = 0;
+	/** The specialised handler for this instruction, if translated. */
+	TranslatedInstruction translation = null;
+	/**
+	 * A handler for this instruction and the next one together, if they
+	 * were fused.
+	 */
+	TranslatedInstruction fused = null;
+	/** The instruction word the next instruction was fused from. */
+	int fusedValue;
+
+	final int op, rs, rt, rd, sh, func, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg, branchOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -0,0 +1,282 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A profiler for user programs. In <tt>sample</tt> mode the processor reports
+ * its PC every <tt>Profiler.interval</tt> user ticks; in <tt>block</tt> mode
+ * it reports the address of every basic block it starts, giving exact
+ * counts. Addresses are charged to the program image the kernel last
+ * selected with <tt>setImage()</tt>.
+ *
+ * <p>
+ * When Nachos halts, the profiler writes a ranked hot-spot report to
+ * <tt>Profiler.output</tt> (default <tt>nachos.prof</tt>), and the same
+ * counts as collapsed stacks (<tt>image;section;address count</tt>) to the
+ * same file name with <tt>.folded</tt> appended, the input format of
+ * flame-graph tools.
+ */
+public final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	mode		<tt>sample</tt> or <tt>block</tt>.
+     */
+    public Profiler(Privilege privilege, String mode) {
+	System.out.print(" profiler");
+
+	this.privilege = privilege;
+
+	if (mode.equals("sample"))
+	    sampling = true;
+	else if (mode.equals("block"))
+	    sampling = false;
+	else
+	    Lib.assertNotReached("Profiler.mode must be sample or block");
+
+	interval = Config.getInteger("Profiler.interval", 1000);
+	Lib.assertTrue(interval > 0, "Profiler.interval must be positive");
+	nextSample = interval;
+
+	fileName = Config.getString("Profiler.output", "nachos.prof");
+
+	current = getImage("?", null);
+    }
+
+    /**
+     * Return <tt>true</tt> if this profiler samples the PC periodically,
+     * rather than counting basic blocks.
+     *
+     * @return	<tt>true</tt> if this is a sampling profiler.
+     */
+    public boolean isSampling() {
+	return sampling;
+    }
+
+    /**
+     * Select the program image that further addresses belong to. Called by
+     * the kernel whenever it switches address spaces.
+     *
+     * @param	name	the name of the image, usually its file name.
+     * @param	coff	the executable, used to find section names, or
+     *			<tt>null</tt> if not known.
+     */
+    public void setImage(String name, Coff coff) {
+	current = getImage(name == null ? "?" : name, coff);
+    }
+
+    /**
+     * Return the number of user ticks that can elapse before the next
+     * sample is due.
+     *
+     * @param	userTicks	the current user tick count.
+     * @return	the number of user ticks until the next sample.
+     */
+    long userTicksUntilSample(long userTicks) {
+	return Math.max(0, (nextSample - userTicks - 1) / Stats.UserTick);
+    }
+
+    /**
+     * Take a sample of the specified PC if one is due.
+     *
+     * @param	userTicks	the current user tick count.
+     * @param	pc		the address of the next user instruction.
+     */
+    void sample(long userTicks, int pc) {
+	if (userTicks < nextSample)
+	    return;
+
+	current.count(pc);
+
+	while (nextSample <= userTicks)
+	    nextSample += interval;
+    }
+
+    /**
+     * Count the start of a basic block.
+     *
+     * @param	pc	the address of the first instruction in the block.
+     */
+    void countBlock(int pc) {
+	current.count(pc);
+    }
+
+    /**
+     * Write the report files. Called when Nachos halts.
+     */
+    void report() {
+	final ArrayList<Entry> entries = new ArrayList<Entry>();
+	long total = 0;
+
+	for (Image image : images.values()) {
+	    for (Map.Entry<Integer, long[]> e : image.counts.entrySet()) {
+		entries.add(new Entry(image, e.getKey(), e.getValue()[0]));
+		total += e.getValue()[0];
+	    }
+	}
+
+	Collections.sort(entries, new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+		    return Long.compare(b.count, a.count);
+		}
+	    });
+
+	final long totalCount = total;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { write(entries, totalCount); }
+	    });
+    }
+
+    private void write(ArrayList<Entry> entries, long total) {
+	try {
+	    PrintWriter out = new PrintWriter(new FileWriter(fileName));
+
+	    if (sampling)
+		out.println(total + " samples, one every " + interval
+			    + " user ticks");
+	    else
+		out.println(total + " basic block executions");
+
+	    out.println();
+	    out.println("     count      %  location");
+
+	    for (Entry entry : entries) {
+		out.println(String.format("%10d %5.1f%%  %s", entry.count,
+					  100.0 * entry.count / total,
+					  entry.describe()));
+	    }
+
+	    out.close();
+
+	    PrintWriter folded = new PrintWriter(new FileWriter(fileName
+							       + ".folded"));
+
+	    for (Entry entry : entries) {
+		folded.println(entry.image.name + ";"
+			       + entry.image.sectionName(entry.pc) + ";0x"
+			       + Lib.toHexString(entry.pc) + " " + entry.count);
+	    }
+
+	    folded.close();
+
+	    System.out.print("Profile written to " + fileName + "\n");
+	}
+	catch (IOException e) {
+	    System.out.print("Could not write profile: " + e + "\n");
+	}
+    }
+
+    private Image getImage(String name, Coff coff) {
+	Image image = images.get(name);
+	if (image == null) {
+	    image = new Image(name, coff);
+	    images.put(name, image);
+	}
+
+	return image;
+    }
+
+    /**
+     * The counts for one program image, and the layout of its sections.
+     */
+    private static class Image {
+	Image(String name, Coff coff) {
+	    this.name = name;
+
+	    if (coff != null) {
+		int numSections = coff.getNumSections();
+
+		sectionNames = new String[numSections];
+		sectionStarts = new int[numSections];
+		sectionEnds = new int[numSections];
+
+		for (int s=0; s<numSections; s++) {
+		    CoffSection section = coff.getSection(s);
+
+		    sectionNames[s] = section.getName();
+		    sectionStarts[s] = section.getFirstVPN()*Processor.pageSize;
+		    sectionEnds[s] = sectionStarts[s] +
+			section.getLength()*Processor.pageSize;
+		}
+	    }
+	}
+
+	void count(int pc) {
+	    long[] count = counts.get(pc);
+	    if (count == null) {
+		count = new long[1];
+		counts.put(pc, count);
+	    }
+
+	    count[0]++;
+	}
+
+	int sectionOf(int pc) {
+	    for (int s=0; s<sectionNames.length; s++) {
+		if (pc >= sectionStarts[s] && pc < sectionEnds[s])
+		    return s;
+	    }
+
+	    return -1;
+	}
+
+	String sectionName(int pc) {
+	    int s = sectionOf(pc);
+
+	    return (s == -1) ? "?" : sectionNames[s];
+	}
+
+	String name;
+	String[] sectionNames = new String[0];
+	int[] sectionStarts = new int[0];
+	int[] sectionEnds = new int[0];
+	HashMap<Integer, long[]> counts = new HashMap<Integer, long[]>();
+    }
+
+    /**
+     * A single line of the report.
+     */
+    private static class Entry {
+	Entry(Image image, int pc, long count) {
+	    this.image = image;
+	    this.pc = pc;
+	    this.count = count;
+	}
+
+	String describe() {
+	    int s = image.sectionOf(pc);
+	    if (s == -1)
+		return image.name + ":0x" + Lib.toHexString(pc);
+
+	    return image.name + ":" + image.sectionNames[s] + "+0x"
+		+ Integer.toHexString(pc - image.sectionStarts[s])
+		+ " (0x" + Lib.toHexString(pc) + ")";
+	}
+
+	Image image;
+	int pc;
+	long count;
+    }
+
+    private Privilege privilege;
+    private boolean sampling;
+    private long interval;
+    private long nextSample;
+    private String fileName;
+    private Image current;
+    private HashMap<String, Image> images = new HashMap<String, Image>();
+}
@@ -29,6 +29,17 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	// only shown when the processor's timing model is enabled
+	if (numICacheHits + numICacheMisses > 0) {
+	    System.out.println("Caches: I-cache hits " + numICacheHits
+			       + ", misses " + numICacheMisses
+			       + "; D-cache hits " + numDCacheHits
+			       + ", misses " + numDCacheMisses);
+	    System.out.println("Branches: conditional " + numBranches
+			       + ", mispredicted " + numBranchMispredictions
+			       + "; stall ticks " + stallTicks);
+	}
     }
 
     /**
@@ -62,6 +73,24 @@ public final class Stats {
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
 
+    /** The total number of instruction fetches that hit the I-cache. */
+    public long numICacheHits = 0;
+    /** The total number of instruction fetches that missed the I-cache. */
+    public long numICacheMisses = 0;
+    /** The total number of loads and stores that hit the D-cache. */
+    public long numDCacheHits = 0;
+    /** The total number of loads and stores that missed the D-cache. */
+    public long numDCacheMisses = 0;
+    /** The total number of conditional branches executed. */
+    public long numBranches = 0;
+    /** The total number of conditional branches that were mispredicted. */
+    public long numBranchMispredictions = 0;
+    /**
+     * The total amount of user time spent stalled on cache misses and
+     * branch mispredictions. Included in <tt>userTicks</tt>.
+     */
+    public long stallTicks = 0;
+
     /**
      * The amount to advance simulated time after each user instructions is
      * executed.
@@ -0,0 +1,276 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Remembers which basic blocks of each executable were hot enough to be
+ * translated, so a later run of the same executable can translate them as
+ * soon as their pages are loaded instead of warming up again.
+ *
+ * <p>
+ * Executables are identified by a hash of their contents, and their hot
+ * blocks are kept as virtual addresses, one file per executable, in the
+ * <tt>.translations</tt> directory under the test directory. The cache only
+ * affects how fast the simulation runs: it costs no simulated time, and
+ * programs behave identically with or without it.
+ *
+ * <p>
+ * A kernel calls <tt>open()</tt> when it loads an executable, then
+ * <tt>pageLoaded()</tt> and <tt>pageUnloaded()</tt> on the returned image as
+ * pages of the executable enter and leave physical memory, and
+ * <tt>close()</tt> when the process exits. Images still open when Nachos
+ * halts are saved then.
+ */
+public final class TranslationCache {
+    /**
+     * Allocate a new translation cache.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	testDirectory	the directory containing the executables.
+     */
+    public TranslationCache(Privilege privilege, File testDirectory) {
+	System.out.print(" translation-cache");
+
+	this.privilege = privilege;
+	this.testDirectory = testDirectory;
+	this.directory = new File(testDirectory, ".translations");
+    }
+
+    /**
+     * Open the cached translations for the executable with the specified
+     * name.
+     *
+     * @param	name	the file name of the executable, relative to the test
+     *			directory.
+     * @return	a handle for the executable, or <tt>null</tt> if it cannot be
+     *		cached.
+     */
+    public Image open(String name) {
+	if (!Machine.processor().isTranslating())
+	    return null;
+
+	final File file = new File(testDirectory, name);
+
+	String key = (String) privilege.doPrivileged(new PrivilegedAction<String>() {
+		public String run() { return hashFile(file); }
+	    });
+
+	if (key == null)
+	    return null;
+
+	Blocks blocks = cache.get(key);
+	if (blocks == null) {
+	    blocks = load(key);
+	    cache.put(key, blocks);
+	}
+
+	Image image = new Image(blocks);
+	images.add(image);
+	return image;
+    }
+
+    /**
+     * Save every changed image. Called when Nachos halts.
+     */
+    void saveAll() {
+	for (Image image : images)
+	    image.harvest();
+
+	for (Blocks blocks : cache.values())
+	    save(blocks);
+    }
+
+    /**
+     * The cached translations of one running copy of an executable.
+     */
+    public final class Image {
+	private Image(Blocks blocks) {
+	    this.blocks = blocks;
+	}
+
+	/**
+	 * Note that a page of the executable was loaded into physical memory,
+	 * and translate the blocks previously seen on it.
+	 *
+	 * @param	vpn	the virtual page that was loaded.
+	 * @param	ppn	the physical page it was loaded into.
+	 */
+	public void pageLoaded(int vpn, int ppn) {
+	    resident.put(vpn, ppn);
+
+	    int start = vpn * Processor.pageSize;
+	    for (int vaddr : blocks.vaddrs.subSet(start,
+						  start + Processor.pageSize))
+		Machine.processor().translateBlockAt(ppn * Processor.pageSize
+						     + (vaddr - start));
+	}
+
+	/**
+	 * Note that a page of the executable is about to leave physical
+	 * memory, and remember the blocks translated on it.
+	 *
+	 * @param	vpn	the virtual page being unloaded.
+	 */
+	public void pageUnloaded(int vpn) {
+	    Integer ppn = resident.remove(vpn);
+	    if (ppn != null)
+		harvest(vpn, ppn);
+	}
+
+	/**
+	 * Save the translations of this image. Called when the process
+	 * exits; the image must not be used afterwards.
+	 */
+	public void close() {
+	    harvest();
+	    resident.clear();
+	    images.remove(this);
+
+	    save(blocks);
+	}
+
+	private void harvest() {
+	    for (Map.Entry<Integer, Integer> e : resident.entrySet())
+		harvest(e.getKey(), e.getValue());
+	}
+
+	private void harvest(int vpn, int ppn) {
+	    int start = vpn * Processor.pageSize;
+
+	    for (int offset : Machine.processor().getTranslatedBlocks(ppn)) {
+		if (blocks.vaddrs.add(start + offset))
+		    blocks.changed = true;
+	    }
+	}
+
+	private Blocks blocks;
+	private HashMap<Integer, Integer> resident =
+	    new HashMap<Integer, Integer>();
+    }
+
+    private static class Blocks {
+	Blocks(String key) {
+	    this.key = key;
+	}
+
+	String key;
+	TreeSet<Integer> vaddrs = new TreeSet<Integer>();
+	boolean changed = false;
+    }
+
+    private static String hashFile(File file) {
+	try {
+	    byte[] digest = MessageDigest.getInstance("SHA-256")
+		.digest(Files.readAllBytes(file.toPath()));
+
+	    StringBuffer result = new StringBuffer();
+	    for (int i=0; i<digest.length; i++)
+		result.append(Lib.toHexString(digest[i] & 0xFF, 2));
+
+	    return result.toString();
+	}
+	catch (IOException e) {
+	    return null;
+	}
+	catch (NoSuchAlgorithmException e) {
+	    return null;
+	}
+    }
+
+    private File blocksFile(String key) {
+	return new File(directory, key + ".blocks");
+    }
+
+    private Blocks load(String key) {
+	final Blocks blocks = new Blocks(key);
+	final File file = blocksFile(key);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			if (!file.exists())
+			    return;
+
+			List<String> lines = Files.readAllLines(file.toPath());
+			for (String line : lines) {
+			    line = line.trim();
+			    if (line.length() > 0)
+				blocks.vaddrs.add(Integer.parseUnsignedInt(line,
+									   16));
+			}
+		    }
+		    catch (IOException e) {
+			blocks.vaddrs.clear();
+		    }
+		    catch (NumberFormatException e) {
+			blocks.vaddrs.clear();
+		    }
+		}
+	    });
+
+	// never translate a block in the wrong place
+	Iterator<Integer> i = blocks.vaddrs.iterator();
+	while (i.hasNext()) {
+	    if ((i.next() & 3) != 0)
+		i.remove();
+	}
+
+	return blocks;
+    }
+
+    private void save(final Blocks blocks) {
+	if (!blocks.changed)
+	    return;
+
+	blocks.changed = false;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			directory.mkdirs();
+
+			File file = blocksFile(blocks.key);
+			File temp = new File(directory, blocks.key + ".tmp");
+
+			PrintWriter out = new PrintWriter(new FileWriter(temp));
+			for (int vaddr : blocks.vaddrs)
+			    out.println(Lib.toHexString(vaddr));
+			out.close();
+
+			if (!temp.renameTo(file)) {
+			    file.delete();
+			    temp.renameTo(file);
+			}
+		    }
+		    catch (IOException e) {
+			System.out.print("Could not write hot blocks of "
+					 + blocks.key + ": " + e + "\n");
+		    }
+		}
+	    });
+    }
+
+    private Privilege privilege;
+    private File testDirectory;
+    private File directory;
+    private HashMap<String, Blocks> cache = new HashMap<String, Blocks>();
+    private ArrayList<Image> images = new ArrayList<Image>();
+}
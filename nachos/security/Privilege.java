@@ -158,6 +158,26 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user-mode ticks that can elapse before any
+	 * pending interrupt becomes due. That many user ticks can be charged
+	 * with <tt>tickUser()</tt> without skipping an interrupt.
+	 *
+	 * @return	the number of user ticks until the next interrupt is due,
+	 *		or 0 if every tick must go through <tt>tick()</tt>.
+	 */
+	public long userTicksUntilDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user-mode
+	 * ticks at once, without checking for due interrupts. The caller
+	 * must not charge more ticks than <tt>userTicksUntilDue()</tt>
+	 * allowed.
+	 *
+	 * @param	numTicks	the number of user ticks to charge.
+	 */
+	public void tickUser(long numTicks);
     }
 
     /**
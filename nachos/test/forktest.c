@@ -0,0 +1,66 @@
+/* forktest.c
+ *	Test program for fork().
+ *
+ *	The parent forks several children, one at a time. After each fork,
+ *	both processes write to the same global array and local variable,
+ *	which start out shared copy-on-write, so each must only ever see its
+ *	own writes. The parent joins each child and checks its exit status.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define NCHILDREN	3
+#define ARRAYSIZE	1024	/* several pages */
+
+int array[ARRAYSIZE];
+
+int main()
+{
+  int i, j, pid, status, local = 0;
+
+  for (j=0; j<ARRAYSIZE; j++)
+    array[j] = j;
+
+  for (i=0; i<NCHILDREN; i++) {
+    pid = fork();
+    if (pid == -1) {
+      printf("fork %d failed\n", i);
+      return 1;
+    }
+
+    if (pid == 0) {
+      /* the child writes every page it shares with its parent */
+      for (j=0; j<ARRAYSIZE; j++)
+	array[j] += 100;
+      local += 100;
+
+      printf("child %d: array[0]=%d local=%d\n", i, array[0], local);
+      exit(array[0] == 100 + i && local == 100 + i ? i : -1);
+    }
+
+    /* and so does the parent, before the child has exited */
+    for (j=0; j<ARRAYSIZE; j++)
+      array[j]++;
+    local++;
+
+    if (join(pid, &status) != 1 || status != i) {
+      printf("child %d failed: status %d\n", i, status);
+      return 1;
+    }
+
+    printf("parent: child %d exited with %d, array[0]=%d local=%d\n",
+	   i, status, array[0], local);
+  }
+
+  /* none of the children's writes reached the parent */
+  for (j=0; j<ARRAYSIZE; j++) {
+    if (array[j] != j + NCHILDREN) {
+      printf("array[%d] is %d, not %d\n", j, array[j], j + NCHILDREN);
+      return 1;
+    }
+  }
+
+  printf("forktest passed\n");
+  return 0;
+}
@@ -0,0 +1,155 @@
+/* mmaptest.c
+ *	Test program for mmap() and munmap().
+ *
+ *	Writes a file of several pages, maps it above the stack, and checks
+ *	that the map holds the file. Pages of the map are then dirtied, and
+ *	the file is read back through a separate file descriptor after each
+ *	of munmap(), close() and exit() to check that the dirty pages were
+ *	written to it. Also checks that read() and write() fail on a mapped
+ *	file descriptor, and that maps overlapping the program or ending too
+ *	far above it are refused.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define FILENAME	"mmap.dat"
+#define PAGESIZE	1024
+#define FILESIZE	(3*PAGESIZE + 100)	/* the last page is partial */
+#define MAXMAPPED	1024			/* MAX_MAPPED_PAGES in the kernel */
+
+char expected[FILESIZE];
+char buf[FILESIZE];
+
+/* fail the test with a message */
+void fail(char *what)
+{
+  printf("mmaptest failed: %s\n", what);
+  exit(1);
+}
+
+/* check the file on disk, read through a fresh file descriptor */
+void checkfile(char *when)
+{
+  int fd, amount, total = 0, i;
+
+  fd = open(FILENAME);
+  if (fd == -1)
+    fail("cannot reopen file");
+
+  while ((amount = read(fd, buf + total, FILESIZE - total)) > 0)
+    total += amount;
+  close(fd);
+
+  if (total != FILESIZE) {
+    printf("after %s: read %d bytes, not %d\n", when, total, FILESIZE);
+    fail("file length changed");
+  }
+
+  for (i=0; i<FILESIZE; i++) {
+    if (buf[i] != expected[i]) {
+      printf("after %s: byte %d is %d, not %d\n", when, i, buf[i], expected[i]);
+      fail("dirty page not written back");
+    }
+  }
+
+  printf("after %s: file OK\n", when);
+}
+
+/* map the file, check the map holds it, and dirty the first and last pages */
+int mapanddirty(char *map, char mark)
+{
+  int fd, i;
+
+  fd = open(FILENAME);
+  if (fd == -1)
+    fail("cannot open file");
+
+  if (mmap(fd, map) != FILESIZE)
+    fail("mmap did not return the file length");
+
+  /* the map is the only way to reach the file while it exists */
+  if (read(fd, buf, 1) != -1 || write(fd, buf, 1) != -1)
+    fail("read or write on a mapped file descriptor");
+
+  for (i=0; i<FILESIZE; i++) {
+    if (map[i] != expected[i])
+      fail("map does not hold the file");
+  }
+
+  map[0] = expected[0] = mark;
+  map[FILESIZE-1] = expected[FILESIZE-1] = mark;
+
+  return fd;
+}
+
+int main()
+{
+  int fd, i, pid, status, top;
+  char *map;
+
+  /* write the file */
+  for (i=0; i<FILESIZE; i++)
+    expected[i] = 'a' + i%26;
+
+  fd = creat(FILENAME);
+  if (fd == -1 || write(fd, expected, FILESIZE) != FILESIZE)
+    fail("cannot write file");
+  close(fd);
+
+  /* map the file a few pages above the stack and arguments */
+  top = ((int) &top + PAGESIZE - 1) & ~(PAGESIZE - 1);
+  map = (char *) (top + 4*PAGESIZE);
+
+  fd = open(FILENAME);
+  if (fd == -1)
+    fail("cannot open file");
+
+  if (mmap(fd, (char *) 0) != -1)
+    fail("map overlapping the program");
+  if (mmap(fd, map + 1) != -1)
+    fail("map at an unaligned address");
+  if (mmap(fd, map + MAXMAPPED*PAGESIZE) != -1)
+    fail("map ending too far above the program");
+  if (mmap(fd, (char *) 0x7FFFF000) != -1)
+    fail("map at the top of the address space");
+  close(fd);
+
+  /* munmap() writes dirty pages back, and the descriptor works again */
+  fd = mapanddirty(map, 'X');
+  map[PAGESIZE+1] = expected[PAGESIZE+1] = 'X';
+  if (munmap(map) != 0)
+    fail("munmap");
+  if (munmap(map) != -1)
+    fail("munmap of a removed map");
+  if (read(fd, buf, 1) != 1)
+    fail("read after munmap");
+  close(fd);
+  checkfile("munmap");
+
+  /* so does close() */
+  fd = mapanddirty(map, 'Y');
+  map[2*PAGESIZE+2] = expected[2*PAGESIZE+2] = 'Y';
+  if (close(fd) != 0)
+    fail("close");
+  checkfile("close");
+
+  /* and so does exit(), in a child that never removes its map */
+  pid = fork();
+  if (pid == -1)
+    fail("fork");
+  if (pid == 0) {
+    mapanddirty(map, 'Z');
+    map[3*PAGESIZE+3] = 'Z';
+    exit(0);
+  }
+
+  expected[0] = expected[FILESIZE-1] = expected[3*PAGESIZE+3] = 'Z';
+  if (join(pid, &status) != 1 || status != 0)
+    fail("child did not exit normally");
+  checkfile("exit");
+
+  unlink(FILENAME);
+  printf("mmaptest passed\n");
+  return 0;
+}
@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +55,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,6 +111,22 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new child process that is a copy of the current process. The child
+ * process has a new unique process ID, and starts with stdin opened as file
+ * descriptor 0, and stdout opened as file descriptor 1. Both processes
+ * continue from the return of fork().
+ *
+ * The child's memory is not copied when it is created: the two processes
+ * share every page until one of them writes to it. If no memory is free to
+ * copy a page when a process first writes to it, only that process is
+ * terminated, and join() returns 0 for it.
+ *
+ * fork() returns the child process's process ID in the parent, which can be
+ * passed to join(), and 0 in the child. On error, returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -216,7 +234,10 @@ int unlink(char *name);
 
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
+ * may be as large as 0x7FFFFFFF bytes. address must be page-aligned, and the
+ * map must not overlap the program or another map, and must end within 1024
+ * pages of the end of the program. Pages of the file are read when they are
+ * first touched.
  * 
  * To maintain consistency, further calls to read() and write() on this file
  * descriptor will fail (returning -1) until the file descriptor is closed.
@@ -228,6 +249,15 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map starting at address, created by mmap(), without closing its
+ * file descriptor. All remaining dirty pages of the map are flushed to disk,
+ * and read() and write() can be used on the file descriptor again.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -0,0 +1,359 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A file system layer that keeps recently executed programs in memory, so
+ * that running the same executable again does not touch the file system.
+ *
+ * <p>
+ * An executable is read with a single read of the whole file, and its headers
+ * are parsed once; the resulting <tt>Image</tt> loads pages by copying from
+ * memory. Images are kept in least-recently-used order, up to
+ * <tt>ExecutableCache.size</tt> bytes (default 1MB, 0 disables caching).
+ * <p>
+ * Every other file system operation is passed through to the underlying file
+ * system. Truncating, writing or removing a file that has been loaded as an
+ * executable drops its cached image, and gives the file a new version, so
+ * pages of the old contents are never shared with processes running the new
+ * contents.
+ */
+public class ExecutableCache implements FileSystem {
+    /**
+     * Allocates a new executable cache in front of a file system.
+     *
+     * @param fileSystem The file system holding the executables
+     */
+    public ExecutableCache(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+
+        capacity = Config.getInteger("ExecutableCache.size", 1 << 20);
+        cacheLock = new Lock();
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+        if (truncate)
+            invalidate(name);
+
+        OpenFile file = fileSystem.open(name, truncate);
+        return file == null ? null : new WatchedFile(file);
+    }
+
+    public boolean remove(String name) {
+        invalidate(name);
+
+        return fileSystem.remove(name);
+    }
+
+    /**
+     * Returns the executable with the specified name, reading it only if it is not cached.
+     *
+     * @param name The file name of the executable
+     * @return Returns the executable, or null if it could not be opened.
+     * @throws EOFException if the executable is corrupt
+     */
+    public Image load(String name) throws EOFException {
+        cacheLock.acquire();
+
+        Image image = images.get(name);
+        int version = versionOf(name);
+
+        // from now on, changing the file moves it to a new version
+        loadedNames.add(name);
+
+        cacheLock.release();
+
+        if (image != null) {
+            Lib.debug(dbgCache, "\tcached executable " + name);
+            return image;
+        }
+
+        OpenFile file = fileSystem.open(name, false);
+        if (file == null)
+            return null;
+
+        byte[] data = Lib.loadFile(file);
+        file.close();
+
+        if (data == null)
+            throw new EOFException();
+
+        image = new Image(name + "@" + version, data);
+
+        cacheLock.acquire();
+
+        // a file rewritten while it was being read is not cached
+        if (versionOf(name) == version && data.length <= capacity) {
+            images.put(name, image);
+            size += data.length;
+
+            Iterator<Image> i = images.values().iterator();
+            while (size > capacity) {
+                Image victim = i.next();
+                i.remove();
+                size -= victim.data.length;
+            }
+        }
+
+        cacheLock.release();
+        return image;
+    }
+
+    /**
+     * Drops the cached image of a file that is about to change, and moves the file to its next version. Files
+     * that have never been loaded as executables, such as the swap file, have no versions, so changing them
+     * costs nothing.
+     *
+     * @param name The file name
+     */
+    private void invalidate(String name) {
+        // only one Nachos thread runs at a time, and this test cannot block, so it needs no lock
+        if (!loadedNames.contains(name))
+            return;
+
+        cacheLock.acquire();
+
+        Image image = images.remove(name);
+        if (image != null) {
+            Lib.debug(dbgCache, "\tinvalidating executable " + name);
+            size -= image.data.length;
+        }
+
+        versions.put(name, versionOf(name) + 1);
+
+        cacheLock.release();
+    }
+
+    /**
+     * Returns the number of times a file has been changed. The caller must hold the cache lock.
+     */
+    private int versionOf(String name) {
+        Integer version = versions.get(name);
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * A COFF executable held in memory. Images are immutable, so one image is shared by every process running
+     * it, and closing an image does nothing.
+     */
+    public static class Image extends Coff {
+        /**
+         * Parses an executable read into memory.
+         *
+         * @param key  The name and version of the executable
+         * @param data The contents of the executable
+         * @throws EOFException if the executable is corrupt
+         */
+        private Image(String key, byte[] data) throws EOFException {
+            super();
+
+            this.key = key;
+            this.data = data;
+
+            if (data.length < headerLength + aoutHeaderLength) {
+                Lib.debug(dbgCache, "\tfile is not executable");
+                throw new EOFException();
+            }
+
+            int magic = Lib.bytesToUnsignedShort(data, 0);
+            int numSections = Lib.bytesToUnsignedShort(data, 2);
+            int optionalHeaderLength = Lib.bytesToUnsignedShort(data, 16);
+            int flags = Lib.bytesToUnsignedShort(data, 18);
+            entryPoint = Lib.bytesToInt(data, headerLength + 16);
+
+            if (magic != 0x0162 || numSections < 2 || numSections > 10 || (flags & 0x0003) != 0x0003) {
+                Lib.debug(dbgCache, "\tbad executable header");
+                throw new EOFException();
+            }
+
+            int offset = headerLength + optionalHeaderLength;
+
+            sections = new CoffSection[numSections];
+            for (int s = 0; s < numSections; s++)
+                sections[s] = parseSection(offset + s * CoffSection.headerLength);
+        }
+
+        private CoffSection parseSection(int headerOffset) throws EOFException {
+            if (headerOffset + CoffSection.headerLength > data.length) {
+                Lib.debug(dbgCache, "\tsection header truncated");
+                throw new EOFException();
+            }
+
+            String name = Lib.bytesToString(data, headerOffset, 8);
+            int vaddr = Lib.bytesToInt(data, headerOffset + 12);
+            int size = Lib.bytesToInt(data, headerOffset + 16);
+            int contentOffset = Lib.bytesToInt(data, headerOffset + 20);
+            int numRelocations = Lib.bytesToUnsignedShort(data, headerOffset + 32);
+            int flags = Lib.bytesToInt(data, headerOffset + 36);
+
+            boolean executable, readOnly, initialized;
+
+            switch (flags & 0x0FFF) {
+                case 0x0020:
+                    executable = true;
+                    readOnly = true;
+                    initialized = true;
+                    break;
+                case 0x0040:
+                    executable = false;
+                    readOnly = false;
+                    initialized = true;
+                    break;
+                case 0x0080:
+                    executable = false;
+                    readOnly = false;
+                    initialized = false;
+                    break;
+                case 0x0100:
+                    executable = false;
+                    readOnly = true;
+                    initialized = true;
+                    break;
+                default:
+                    Lib.debug(dbgCache, "\tinvalid section flags: " + flags);
+                    throw new EOFException();
+            }
+
+            if (numRelocations != 0 || vaddr % Processor.pageSize != 0 || size < 0 ||
+                    initialized && (contentOffset < 0 || contentOffset + size > data.length)) {
+                Lib.debug(dbgCache, "\tinvalid section " + name);
+                throw new EOFException();
+            }
+
+            return new Section(this, name, executable, readOnly, initialized, vaddr / Processor.pageSize,
+                    contentOffset, size);
+        }
+
+        public int getEntryPoint() {
+            return entryPoint;
+        }
+
+        public void close() {
+        }
+
+        /**
+         * Returns the name under which pages of this image are shared: the file name and the version of its
+         * contents.
+         *
+         * @return Returns the key of this image.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        private String key;
+        private byte[] data;
+    }
+
+    /**
+     * A section of an image, loaded by copying from memory.
+     */
+    private static class Section extends CoffSection {
+        Section(Image image, String name, boolean executable, boolean readOnly, boolean initialized,
+                int firstVPN, int contentOffset, int size) {
+            super(image, name, executable, readOnly, Lib.divRoundUp(size, Processor.pageSize), firstVPN);
+
+            this.image = image;
+            this.initialized = initialized;
+            this.contentOffset = contentOffset;
+            this.size = size;
+        }
+
+        public void loadPage(int spn, int ppn) {
+            Lib.assertTrue(spn >= 0 && spn < numPages);
+            Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
+
+            int pageSize = Processor.pageSize;
+            MainMemory memory = Machine.processor().getMainMemory();
+            int paddr = ppn * pageSize;
+            int initlen = initialized ? Math.min(pageSize, size - spn * pageSize) : 0;
+
+            if (initlen > 0)
+                memory.write(paddr, image.data, contentOffset + spn * pageSize, initlen);
+
+            // the processor checks its decoded instructions against memory, so none go stale here
+            memory.fill(paddr + initlen, pageSize - initlen, (byte) 0);
+        }
+
+        public void loadSection(int[] ppns) {
+            Lib.assertTrue(ppns.length == numPages);
+
+            for (int spn = 0; spn < numPages; spn++) {
+                if (ppns[spn] != -1)
+                    loadPage(spn, ppns[spn]);
+            }
+        }
+
+        private Image image;
+        private int contentOffset, size;
+    }
+
+    /**
+     * An open file that invalidates its file before every write, in case it has been loaded as an executable.
+     */
+    private class WatchedFile extends OpenFile {
+        WatchedFile(OpenFile file) {
+            super(ExecutableCache.this, file.getName());
+
+            this.file = file;
+        }
+
+        public int read(int pos, byte[] buf, int offset, int length) {
+            return file.read(pos, buf, offset, length);
+        }
+
+        public int write(int pos, byte[] buf, int offset, int length) {
+            invalidate(getName());
+
+            return file.write(pos, buf, offset, length);
+        }
+
+        public int length() {
+            return file.length();
+        }
+
+        public void close() {
+            file.close();
+        }
+
+        public void seek(int pos) {
+            file.seek(pos);
+        }
+
+        public int tell() {
+            return file.tell();
+        }
+
+        public int read(byte[] buf, int offset, int length) {
+            return file.read(buf, offset, length);
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            invalidate(getName());
+
+            return file.write(buf, offset, length);
+        }
+
+        private OpenFile file;
+    }
+
+    private FileSystem fileSystem;
+    private int capacity;
+    private Lock cacheLock;
+    private LinkedHashMap<String, Image> images = new LinkedHashMap<>(16, 0.75f, true);  // in least-recently-used order
+    private int size = 0;  // total bytes of the cached images
+    private HashMap<String, Integer> versions = new HashMap<>();  // number of changes to each file that has changed
+    private HashSet<String> loadedNames = new HashSet<>();  // every file that has been loaded as an executable
+
+    private static final int headerLength = 20;
+    private static final int aoutHeaderLength = 28;
+
+    private static final char dbgCache = 'x';
+}
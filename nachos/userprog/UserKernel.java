@@ -4,7 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * A kernel that can support multiple user processes.
@@ -26,14 +27,32 @@ public class UserKernel extends ThreadedKernel {
 
         console = new SynchConsole(Machine.console());
 
+        // executables are read through the cache, which must see every change to a file
+        if (fileSystem != null) {
+            executables = new ExecutableCache(fileSystem);
+            fileSystem = executables;
+        }
+
         Machine.processor().setExceptionHandler(new Runnable() {
             public void run() {
                 exceptionHandler();
             }
         });
         pageListLock = new Lock();
+
+        // every page starts out free
+        freePageBitmap = new long[(numberOfPhysicalPages + 63) / 64];
+        for (int i = 0; i < numberOfPhysicalPages; i++)
+            freePageBitmap[i / 64] |= 1L << (i % 64);
+        numberOfFreePages = numberOfPhysicalPages;
+
+        pageReferences = new int[numberOfPhysicalPages];
+        sharedPages = new HashMap<>();
+        sharedPageKeys = new String[numberOfPhysicalPages];
+
+        coreMap = new CoreMapEntry[numberOfPhysicalPages];
         for (int i = 0; i < numberOfPhysicalPages; i++)
-            physicalPageList.add(i);
+            coreMap[i] = new CoreMapEntry();
     }
 
     /**
@@ -114,59 +133,411 @@ public class UserKernel extends ThreadedKernel {
         super.terminate();
     }
 
-    // pageList access functions
+    // free page bitmap access functions
 
     /**
-     * Takes the first page from the list of available physical pages and returns its number.
+     * Takes the lowest numbered free physical page and returns its number.
      * This is used to fetch individual free physical pages for usage.
-     * When a process requires more than one page, it will be required to call this method multiple times.
-     * This enables the process to use the gaps created when pages are freed, since the pages are not necessarily
-     * accessed in a block or sequential fashion.
+     * A process that requires more than one page should use <b>fetchPhysicalPages</b> instead, which takes the
+     * page lock only once.
      *
-     * @return Returns a page number from the list of available physical pages. If not available, returns -1.
+     * @return Returns a page number from the available physical pages. If not available, returns -1.
      */
     public static int fetchPhysicalPage() {
-        int pageReturned = -1;
+        int[] page = new int[1];
+
+        if (!fetchPhysicalPages(1, page))
+            return -1;
+
+        return page[0];
+    }
+
+    /**
+     * Takes <i>count</i> free physical pages, which need not be contiguous, and stores their numbers in the
+     * first <i>count</i> entries of <i>pages</i>. Either all of the pages are taken or none of them are, so a
+     * failed request never has to be undone by the caller.
+     *
+     * @param count The number of pages required
+     * @param pages The array in which the page numbers are returned
+     * @return Upon successful allocation of all the pages, returns true. Returns false if there are not enough
+     * free pages, in which case no page is taken.
+     */
+    public static boolean fetchPhysicalPages(int count, int[] pages) {
+        Lib.assertTrue(count >= 0 && count <= pages.length);
+
+        pageListLock.acquire();
+
+        if (count > numberOfFreePages) {
+            pageListLock.release();
+            return false;
+        }
+
+        int taken = 0;
+        for (int word = 0; taken < count; word++) {
+            while (freePageBitmap[word] != 0 && taken < count) {
+                int bit = Long.numberOfTrailingZeros(freePageBitmap[word]);
+                freePageBitmap[word] &= ~(1L << bit);
+                pageReferences[word * 64 + bit] = 1;
+                pages[taken++] = word * 64 + bit;
+            }
+        }
+        numberOfFreePages -= count;
+
+        pageListLock.release();
+        return true;
+    }
+
+    /**
+     * Takes a run of <i>count</i> free physical pages with consecutive page numbers, lowest first.
+     *
+     * @param count The number of pages required
+     * @return Returns the number of the first page of the run. If no run of that length is free, returns -1 and
+     * takes no page.
+     */
+    public static int fetchContiguousPhysicalPages(int count) {
+        Lib.assertTrue(count > 0);
+
+        pageListLock.acquire();
+
+        int first = -1;
+        int runLength = 0;
+
+        if (count <= numberOfFreePages) {
+            for (int i = 0; i < numberOfPhysicalPages && runLength < count; i++) {
+                if (isFree(i)) {
+                    if (runLength == 0)
+                        first = i;
+                    runLength++;
+                } else {
+                    runLength = 0;
+                }
+            }
+        }
+
+        if (runLength < count) {
+            pageListLock.release();
+            return -1;
+        }
+
+        for (int i = first; i < first + count; i++) {
+            freePageBitmap[i / 64] &= ~(1L << (i % 64));
+            pageReferences[i] = 1;
+        }
+        numberOfFreePages -= count;
+
+        pageListLock.release();
+        return first;
+    }
+
+    /**
+     * When a physical page is freed, it is marked as available again so that it can be fetched by any process.
+     * A page that is shared by other processes only loses one reference, and stays in use until the last one
+     * is dropped.
+     *
+     * @param pageNumber The number of the page which is to be added to the available physical pages
+     * @return Upon successful release of the page, returns true.
+     * Returns false if the pageNumber provided for addition is invalid or the page is already free.
+     */
+    public static boolean addPhysicalPage(int pageNumber) {
+        return addPhysicalPages(new int[]{pageNumber}, 1) == 1;
+    }
+
+    /**
+     * Drops one reference to each of the first <i>count</i> physical pages in <i>pages</i>, taking the page
+     * lock only once. A page is freed, and removed from the shared page table, when its last reference is
+     * dropped.
+     *
+     * @param pages The numbers of the pages to release
+     * @param count The number of pages to release
+     * @return Returns the number of references dropped. Invalid page numbers and pages that are already free are
+     * skipped.
+     */
+    public static int addPhysicalPages(int[] pages, int count) {
+        Lib.assertTrue(count >= 0 && count <= pages.length);
+
+        int added = 0;
+        pageListLock.acquire();
+
+        for (int i = 0; i < count; i++) {
+            int pageNumber = pages[i];
+
+            if (pageNumber >= 0 && pageNumber < numberOfPhysicalPages && !isFree(pageNumber)) {
+                added++;
+
+                if (--pageReferences[pageNumber] > 0)
+                    continue;
+
+                Lib.assertTrue(coreMap[pageNumber].processes.isEmpty(), "freeing a mapped page");
+
+                freePageBitmap[pageNumber / 64] |= 1L << (pageNumber % 64);
+                numberOfFreePages++;
+
+                if (sharedPageKeys[pageNumber] != null) {
+                    sharedPages.remove(sharedPageKeys[pageNumber]);
+                    sharedPageKeys[pageNumber] = null;
+                }
+            }
+        }
+
+        pageListLock.release();
+        return added;
+    }
+
+    /**
+     * Takes another reference to a page that is already in use, so that it stays in use until that reference
+     * is also released with <b>addPhysicalPage</b>.
+     *
+     * @param pageNumber The number of the page
+     */
+    public static void referencePhysicalPage(int pageNumber) {
+        pageListLock.acquire();
+
+        Lib.assertTrue(pageNumber >= 0 && pageNumber < numberOfPhysicalPages && !isFree(pageNumber));
+        pageReferences[pageNumber]++;
+
+        pageListLock.release();
+    }
+
+    /**
+     * Returns the number of references to a page.
+     *
+     * @param pageNumber The number of the page
+     * @return Returns the number of page table entries that map the page, or 0 if it is free.
+     */
+    public static int physicalPageReferences(int pageNumber) {
+        pageListLock.acquire();
+        int references = isFree(pageNumber) ? 0 : pageReferences[pageNumber];
+        pageListLock.release();
+
+        return references;
+    }
+
+    /**
+     * Looks up a page in the shared page table and, if it is there, takes a new reference to it. The caller
+     * must release the reference with <b>addPhysicalPage</b> like any other page.
+     *
+     * @param key The name of the page, as built by <b>UserProcess.sharedPageKey</b>
+     * @return Returns the number of the shared page, or -1 if no page is shared under that name.
+     */
+    public static int fetchSharedPage(String key) {
+        pageListLock.acquire();
+
+        Integer pageNumber = sharedPages.get(key);
+        if (pageNumber != null)
+            pageReferences[pageNumber]++;
+
+        pageListLock.release();
+        return pageNumber == null ? -1 : pageNumber;
+    }
+
+    /**
+     * Publishes a page whose contents have been loaded in the shared page table, so that later calls to
+     * <b>fetchSharedPage</b> with the same key map it instead of loading their own copy. The page must never be
+     * written while it is shared.
+     *
+     * @param key        The name of the page
+     * @param pageNumber The page holding its contents
+     * @return Returns true if the page was published. Returns false if another page is already shared under the
+     * same name, in which case this page stays private.
+     */
+    public static boolean sharePhysicalPage(String key, int pageNumber) {
         pageListLock.acquire();
 
-        if (physicalPageList.size() > 0) {
-            pageReturned = physicalPageList.removeFirst();
+        boolean shared = !sharedPages.containsKey(key) && sharedPageKeys[pageNumber] == null;
+        if (shared) {
+            sharedPages.put(key, pageNumber);
+            sharedPageKeys[pageNumber] = key;
         }
 
         pageListLock.release();
-        return pageReturned;
+        return shared;
     }
 
     /**
-     * When a physical page is freed, it can be added to the list of physical pages added to the Kernel.
-     * This method enables the Kernel to utilize the gaps created due to freeing of physical pages because they
-     * are stored as a Linked list and never assessed in a sequential or block-wise fashion.
+     * Returns whether a page is in the shared page table.
      *
-     * @param pageNumber The number of the page which is to be added to the list of available physical pages
-     * @return Upon successful addition of the freed page to the list of available physical pages, returns true.
-     * Returns false if the pageNumber provided for addition is invalid.
+     * @param pageNumber The number of the page
+     * @return Returns true if the page is shared.
      */
-    public static boolean addPhysicalPage(int pageNumber) { // if its a faulty page number , should I throw an error? or ignore?
-        boolean pageAdded = false;
+    public static boolean isSharedPage(int pageNumber) {
         pageListLock.acquire();
+        boolean shared = sharedPageKeys[pageNumber] != null;
+        pageListLock.release();
+
+        return shared;
+    }
+
+    /**
+     * Takes a reference to the zero page, a physical page that is always filled with zeros. Pages that have
+     * never been written map it read-only, and get a private page the first time they are written. The kernel
+     * keeps a reference of its own, so the zero page is never freed and always has to be copied.
+     *
+     * @return Returns the number of the zero page, or -1 if there is no free page for it.
+     */
+    public static int fetchZeroPage() {
+        pageListLock.acquire();
+
+        if (zeroPage == -1 && numberOfFreePages > 0) {
+            for (int word = 0; zeroPage == -1; word++) {
+                if (freePageBitmap[word] != 0) {
+                    int bit = Long.numberOfTrailingZeros(freePageBitmap[word]);
+                    freePageBitmap[word] &= ~(1L << bit);
+                    zeroPage = word * 64 + bit;
+                }
+            }
+            numberOfFreePages--;
 
-        if (pageNumber >= 0 && pageNumber < numberOfPhysicalPages) {
-            physicalPageList.add(pageNumber);
-            pageAdded = true;
+            // the kernel's own reference
+            pageReferences[zeroPage] = 1;
+            Machine.processor().getMainMemory().fill(zeroPage * Processor.pageSize, Processor.pageSize, (byte) 0);
         }
+
+        int pageNumber = zeroPage;
+        if (pageNumber != -1)
+            pageReferences[pageNumber]++;
+
+        pageListLock.release();
+        return pageNumber;
+    }
+
+    /**
+     * Returns whether a page is the zero page.
+     *
+     * @param pageNumber The number of the page
+     * @return Returns true if the page is the zero page.
+     */
+    public static boolean isZeroPage(int pageNumber) {
+        return pageNumber != -1 && pageNumber == zeroPage;
+    }
+
+    /**
+     * Records in the core map that a process maps a physical page at a virtual page, and sets the page's
+     * reference bit. Every process mapping the same page maps it at the same virtual page. The zero page
+     * belongs to the kernel, and is never entered in the core map.
+     *
+     * @param pageNumber The number of the physical page
+     * @param process    The process mapping it
+     * @param vpn        The virtual page it is mapped at
+     */
+    public static void mapPhysicalPage(int pageNumber, UserProcess process, int vpn) {
+        if (isZeroPage(pageNumber)) return;
+
+        pageListLock.acquire();
+
+        CoreMapEntry entry = coreMap[pageNumber];
+        Lib.assertTrue(!isFree(pageNumber) && (entry.processes.isEmpty() || entry.vpn == vpn));
+
+        entry.processes.add(process);
+        entry.vpn = vpn;
+        entry.used = true;
+
         pageListLock.release();
-        return pageAdded;
     }
 
+    /**
+     * Removes a process from the core map entries of the first <i>count</i> physical pages in <i>pages</i>,
+     * taking the page lock only once. Must be called before the process releases the pages.
+     *
+     * @param pages   The numbers of the pages the process no longer maps
+     * @param count   The number of pages in <i>pages</i>
+     * @param process The process
+     */
+    public static void unmapPhysicalPages(int[] pages, int count, UserProcess process) {
+        pageListLock.acquire();
+
+        for (int i = 0; i < count; i++) {
+            CoreMapEntry entry = coreMap[pages[i]];
+            entry.processes.remove(process);
+
+            if (entry.processes.isEmpty()) {
+                entry.pinCount = 0;
+                entry.used = false;
+            }
+        }
+
+        pageListLock.release();
+    }
+
+    /**
+     * Pins a physical page, so that it is not evicted until it is unpinned.
+     *
+     * @param pageNumber The number of the page
+     */
+    public static void pinPhysicalPage(int pageNumber) {
+        pageListLock.acquire();
+        coreMap[pageNumber].pinCount++;
+        pageListLock.release();
+    }
+
+    /**
+     * Unpins a physical page pinned by <b>pinPhysicalPage</b>.
+     *
+     * @param pageNumber The number of the page
+     */
+    public static void unpinPhysicalPage(int pageNumber) {
+        pageListLock.acquire();
+
+        Lib.assertTrue(coreMap[pageNumber].pinCount > 0);
+        coreMap[pageNumber].pinCount--;
+
+        pageListLock.release();
+    }
+
+    /**
+     * Returns whether a physical page is free. The caller must hold the page lock.
+     */
+    private static boolean isFree(int pageNumber) {
+        return (freePageBitmap[pageNumber / 64] & (1L << (pageNumber % 64))) != 0;
+    }
+
+    /**
+     * The processes mapping one physical page, for finding a page's owners without searching every page
+     * table.
+     */
+    protected static class CoreMapEntry {
+        /**
+         * The processes mapping the page, or none if the page is free.
+         */
+        public ArrayList<UserProcess> processes = new ArrayList<>();
+        /**
+         * The virtual page every process maps the page at.
+         */
+        public int vpn;
+        /**
+         * The number of times the page is pinned.
+         */
+        public int pinCount;
+        /**
+         * The reference bit, set when the page is mapped and cleared by the replacement policy.
+         */
+        public boolean used;
+    }
+
+    /**
+     * The core map, indexed by physical page number. Updated under the page lock; a subclass that replaces
+     * pages must also keep every update behind its own lock while it scans the map.
+     */
+    protected static CoreMapEntry[] coreMap;
+
     /**
      * Globally accessible reference to the synchronized console.
      */
     public static SynchConsole console;
 
+    /**
+     * Globally accessible reference to the executable cache, or <tt>null</tt> if there is no file system.
+     */
+    public static ExecutableCache executables;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 
     private static int numberOfPhysicalPages = Machine.processor().getNumPhysPages();   // fetch total available physical page count
-    private static LinkedList<Integer> physicalPageList = new LinkedList<>();  // linked list to keep track of used and unused physical pages
-    private static Lock pageListLock;  // lock to synchronize access in the linked list of pages
+    private static long[] freePageBitmap;  // one bit per physical page, set if the page is free
+    private static int numberOfFreePages;  // number of bits set in freePageBitmap
+    private static Lock pageListLock;  // lock to synchronize access to the free page bitmap
+    private static int[] pageReferences;  // number of page table entries mapping each page in use
+    private static HashMap<String, Integer> sharedPages;  // shared page table, from page name to page number
+    private static String[] sharedPageKeys;  // name of each shared page, or null if the page is not shared
+    private static int zeroPage = -1;  // the page every never-written page maps, or -1 if it is not made yet
 }
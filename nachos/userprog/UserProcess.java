@@ -8,6 +8,7 @@ import java.io.*;
 
 import java.nio.Buffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -27,14 +28,8 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-        int numPhysPages = Machine.processor().getNumPhysPages();
-        pageTable = new TranslationEntry[numPhysPages];
-
-        for (int i = 0; i < numPhysPages; i++) {
-//            pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
-            // initialized pageTable for this process with invalid Translation entries
-            pageTable[i] = new TranslationEntry(-1, -1, false, false, false, false);
-        }
+        // the page table grows as the address space is allocated, so it only ever holds mapped pages
+        pageTable = new TranslationEntry[0];
 
         processIDLock.acquire();
         processID = processCounter++;
@@ -45,6 +40,9 @@ public class UserProcess {
         parentProcess = null;
         childProcesses = new ArrayList<>();
         childProcessExitStatus = new HashMap<>();
+
+        openFiles[0] = UserKernel.console.openForReading();
+        openFiles[1] = UserKernel.console.openForWriting();
     }
 
 
@@ -93,7 +91,11 @@ public class UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-        Machine.processor().setPageTable(pageTable);
+        if (!Machine.processor().hasTLB())
+            Machine.processor().setPageTable(pageTable);
+
+        if (Machine.profiler() != null)
+            Machine.profiler().setImage(coffName, coff);
     }
 
     /**
@@ -155,13 +157,13 @@ public class UserProcess {
 
         if (numPages == 0) return 0;  // no physical page allocated
 
-        byte[] memory = Machine.processor().getMemory();
+        MainMemory memory = Machine.processor().getMainMemory();
 
         int transferredBytes = 0;
         int vaddrEnd = vaddr + length - 1;
 
-        // virtual address must be within physical address limit
-        if (vaddr < 0 || vaddrEnd > Processor.makeAddress(numPages - 1, pageSize - 1)) {
+        // virtual address must be within the address space, which includes any mapped files
+        if (vaddr < 0 || vaddrEnd > Processor.makeAddress(pageTable.length - 1, pageSize - 1)) {
             return 0;
         }
 
@@ -169,7 +171,7 @@ public class UserProcess {
         int endingPage = Processor.pageFromAddress(vaddrEnd);
 
         for (int i = startingPage; i <= endingPage; i++) {
-            if (i < 0 || i >= pageTable.length || !pageTable[i].valid) {
+            if (i < 0 || i >= pageTable.length || !pageTable[i].valid && !faultInMappedPage(i)) {
                 transferredBytes = 0;
                 break;
             }
@@ -203,7 +205,7 @@ public class UserProcess {
 
             int physicalPageAddressForThisPage = Processor.makeAddress(pageTable[i].ppn, addressOffsetForThisPage);
 
-            System.arraycopy(memory, physicalPageAddressForThisPage, data, offset + transferredBytes, transferredBytesForThisPage);
+            memory.read(physicalPageAddressForThisPage, data, offset + transferredBytes, transferredBytesForThisPage);
 
             transferredBytes += transferredBytesForThisPage;
         }
@@ -244,20 +246,22 @@ public class UserProcess {
 
         if (numPages == 0) return 0;  // no physical page allocated
 
-        byte[] memory = Machine.processor().getMemory();
+        MainMemory memory = Machine.processor().getMainMemory();
 
         int transferredBytes = 0;
         int vaddrEnd = vaddr + length - 1;
 
-        if (vaddr < 0 || vaddrEnd > Processor.makeAddress(numPages - 1, pageSize - 1)) {
-            return 0;  // virtual address must be within physical address limit
+        if (vaddr < 0 || vaddrEnd > Processor.makeAddress(pageTable.length - 1, pageSize - 1)) {
+            return 0;  // virtual address must be within the address space
         }
 
         int startingPage = Processor.pageFromAddress(vaddr);
         int endingPage = Processor.pageFromAddress(vaddrEnd);
 
         for (int i = startingPage; i <= endingPage; i++) {
-            if (i < 0 || i >= pageTable.length || !pageTable[i].valid) {
+            // read-only pages may be shared with other processes, so copy-on-write pages are copied first
+            if (i < 0 || i >= pageTable.length || !pageTable[i].valid && !faultInMappedPage(i)
+                    || (pageTable[i].readOnly && !breakCopyOnWrite(i))) {
                 transferredBytes = 0;
                 break;
             }
@@ -291,7 +295,8 @@ public class UserProcess {
 
             int physicalPageAddressForThisPage = Processor.makeAddress(pageTable[i].ppn, addressOffsetForThisPage);
 
-            System.arraycopy(data, offset + transferredBytes, memory, physicalPageAddressForThisPage, transferredBytesForThisPage);
+            memory.write(physicalPageAddressForThisPage, data, offset + transferredBytes, transferredBytesForThisPage);
+            pageTable[i].dirty = true;
 
             transferredBytes += transferredBytesForThisPage;
         }
@@ -299,34 +304,513 @@ public class UserProcess {
         return transferredBytes;
     }
 
+    /**
+     * Build the scatter/gather list for a user buffer: the runs of physical memory that hold the bytes
+     * <tt>vaddr</tt> through <tt>vaddr + length - 1</tt>, in order. Consecutive virtual pages that are also
+     * consecutive in physical memory are merged into a single run. Every page in the buffer is marked as used,
+     * and also as dirty if <tt>writing</tt> is true. If the list is not <tt>null</tt>, the caller must call
+     * <tt>releasePhysicalRuns()</tt> once it has finished with it.
+     *
+     * @param vaddr   the first byte of the buffer.
+     * @param length  the number of bytes in the buffer.
+     * @param writing whether the buffer is about to be written.
+     * @return pairs of (physical address, byte count), or <tt>null</tt> if the buffer is empty or any part of it
+     * is invalid, or read-only when <tt>writing</tt> is true.
+     */
+    protected int[] getPhysicalRuns(int vaddr, int length, boolean writing) {
+        if (numPages == 0 || length <= 0) return null;
+
+        int vaddrEnd = vaddr + length - 1;
+
+        if (vaddr < 0 || vaddrEnd < vaddr || vaddrEnd > Processor.makeAddress(pageTable.length - 1, pageSize - 1)) {
+            return null;
+        }
+
+        int startingPage = Processor.pageFromAddress(vaddr);
+        int endingPage = Processor.pageFromAddress(vaddrEnd);
+
+        for (int i = startingPage; i <= endingPage; i++) {
+            if (i >= pageTable.length || !pageTable[i].valid && !faultInMappedPage(i)) return null;
+            if (writing && pageTable[i].readOnly && !breakCopyOnWrite(i)) return null;
+        }
+
+        int[] runs = new int[2 * (endingPage - startingPage + 1)];
+        int numberOfRuns = 0;
+
+        for (int i = startingPage; i <= endingPage; i++) {
+            TranslationEntry entry = pageTable[i];
+            entry.used = true;
+            if (writing) entry.dirty = true;
+
+            int first = Math.max(vaddr, Processor.makeAddress(i, 0));
+            int last = Math.min(vaddrEnd, Processor.makeAddress(i, pageSize - 1));
+            int paddr = Processor.makeAddress(entry.ppn, Processor.offsetFromAddress(first));
+
+            if (numberOfRuns > 0 && runs[2 * numberOfRuns - 2] + runs[2 * numberOfRuns - 1] == paddr) {
+                runs[2 * numberOfRuns - 1] += last - first + 1;
+            } else {
+                runs[2 * numberOfRuns] = paddr;
+                runs[2 * numberOfRuns + 1] = last - first + 1;
+                numberOfRuns++;
+            }
+        }
+
+        return Arrays.copyOf(runs, 2 * numberOfRuns);
+    }
+
+    /**
+     * Called when the kernel has finished with the physical runs returned by <tt>getPhysicalRuns()</tt> for
+     * the same buffer. Does nothing here; a subclass that moves pages may use it to let them move again.
+     *
+     * @param vaddr  the first byte of the buffer.
+     * @param length the number of bytes in the buffer.
+     */
+    protected void releasePhysicalRuns(int vaddr, int length) {
+    }
+
+    /**
+     * Move data directly between an open file and the physical memory runs returned by
+     * <tt>getPhysicalRuns()</tt>, one <b>MainMemory</b> transfer per run, at the file's current position. The
+     * transfer stops at the first run the file does not complete.
+     *
+     * @param file       the file or stream to transfer from or to.
+     * @param runs       the scatter/gather list of the user buffer.
+     * @param intoMemory true to read from the file into memory, false to write memory to the file.
+     * @return the number of bytes transferred, or -1 if the file failed before transferring anything.
+     */
+    private int transferPhysicalRuns(OpenFile file, int[] runs, boolean intoMemory) {
+        MainMemory memory = Machine.processor().getMainMemory();
+
+        int transferredBytes = 0;
+
+        for (int i = 0; i < runs.length; i += 2) {
+            int amount = intoMemory ? memory.readFrom(file, -1, runs[i], runs[i + 1])
+                    : memory.writeTo(file, -1, runs[i], runs[i + 1]);
+
+            if (amount < 0) return transferredBytes == 0 ? -1 : transferredBytes;
+
+            transferredBytes += amount;
+            if (amount < runs[i + 1]) return transferredBytes;
+        }
+
+        return transferredBytes;
+    }
+
     /**
      * This method takes the virtual page number of the first page to be allocated for a section, for which
      * this method has been called. It attempts to allocate a certain number of pages to this section.
-     * It fetches the required number of pages by proportional number of calls to the <b>UserKernel.fetchPhysicalPage</b> method.
-     * If any call to this method returns -1, then the number of pages required for this section is not available.
-     * In that case, this method returns false.
+     * Read-only pages that another process running the same executable has already loaded are shared with it
+     * through <b>UserKernel.fetchSharedPage</b>, and pages that start out filled with zeros map the zero page
+     * read-only until they are written. The rest are fetched with a single call to the
+     * <b>UserKernel.fetchPhysicalPages</b> method, which either takes every page or none of them. If the pages
+     * required for this section are not available, this method returns false.
      *
      * @param virtualPageNumber The virtual page number of the first page that is to be allocated for a section
      * @param sectionLength     The number of virtual pages that are to be allocated for a section
      * @param readOnly          Whether the section is read only
      * @return Upon successful allocation of pages, returns true. Returns false otherwise.
      */
-    private boolean tryAllocate(int virtualPageNumber, int sectionLength, boolean readOnly) {
-        if (virtualPageNumber + sectionLength - 1 >= pageTable.length) {
+    protected boolean tryAllocate(int virtualPageNumber, int sectionLength, boolean readOnly) {
+        if (virtualPageNumber + sectionLength > Machine.processor().getNumPhysPages()) {
             return false;
         }
 
+        int[] physicalPages = new int[sectionLength];
+        int numberOfSharedPages = 0;
+
+        boolean[] zeroPages = new boolean[sectionLength];
+
         for (int i = 0; i < sectionLength; i++) {
-            int physicalPage = UserKernel.fetchPhysicalPage();
-            if (physicalPage == -1) {
-                return false;
+            String key = readOnly ? sharedPageKey(virtualPageNumber + i) : null;
+            physicalPages[i] = key == null ? -1 : UserKernel.fetchSharedPage(key);
+
+            // stack, argument and uninitialized pages map the zero page until they are written
+            if (physicalPages[i] == -1 && isZeroFilled(virtualPageNumber + i)) {
+                physicalPages[i] = UserKernel.fetchZeroPage();
+                zeroPages[i] = physicalPages[i] != -1;
             }
-            pageTable[virtualPageNumber + i] = new TranslationEntry(virtualPageNumber + i, physicalPage, true, readOnly, false, false);
+
+            if (physicalPages[i] != -1)
+                numberOfSharedPages++;
+        }
+
+        int[] newPages = new int[sectionLength - numberOfSharedPages];
+        if (!UserKernel.fetchPhysicalPages(newPages.length, newPages)) {
+            int[] sharedPages = new int[numberOfSharedPages];
+            int count = 0;
+            for (int i = 0; i < sectionLength; i++) {
+                if (physicalPages[i] != -1)
+                    sharedPages[count++] = physicalPages[i];
+            }
+            UserKernel.addPhysicalPages(sharedPages, count);
+
+            return false;
+        }
+
+        growPageTable(virtualPageNumber + sectionLength);
+
+        for (int i = 0, next = 0; i < sectionLength; i++) {
+            if (physicalPages[i] == -1)
+                physicalPages[i] = newPages[next++];
+
+            pageTable[virtualPageNumber + i] = new TranslationEntry(virtualPageNumber + i, physicalPages[i], true,
+                    readOnly || zeroPages[i], false, false);
+            UserKernel.mapPhysicalPage(physicalPages[i], this, virtualPageNumber + i);
             numPages++;
         }
         return true;
     }
 
+    /**
+     * Returns whether a page starts out filled with zeros: a page of the stack or arguments, or of an
+     * uninitialized section.
+     *
+     * @param vpn The virtual page number of the page
+     * @return Returns true if the page is not loaded from the executable.
+     */
+    protected boolean isZeroFilled(int vpn) {
+        CoffSection section = sectionOf(vpn);
+        return section == null || !section.isInitialzed();
+    }
+
+    /**
+     * Grows the page table to cover at least the specified number of virtual pages. New entries are invalid.
+     *
+     * @param length The number of virtual pages the page table must cover
+     */
+    protected void growPageTable(int length) {
+        if (length <= pageTable.length) return;
+
+        int oldLength = pageTable.length;
+        pageTable = Arrays.copyOf(pageTable, length);
+
+        for (int i = oldLength; i < length; i++)
+            pageTable[i] = new TranslationEntry(-1, -1, false, false, false, false);
+    }
+
+    /**
+     * Returns the name under which a read-only page of the executable is kept in the kernel's shared page
+     * table: the executable and the version of its contents, the section, and the page within the section.
+     *
+     * @param vpn The virtual page number of the page
+     * @return Returns the name of the page, or null if the page is not part of a read-only section.
+     */
+    protected String sharedPageKey(int vpn) {
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+            int spn = vpn - section.getFirstVPN();
+
+            if (spn >= 0 && spn < section.getLength())
+                return section.isReadOnly() ? coffKey + ":" + s + ":" + spn : null;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns whether a page is a copy-on-write page: a writable page that is mapped read-only because it is
+     * shared with a process created by <tt>fork()</tt>.
+     *
+     * @param vpn The virtual page number of the page
+     * @return Returns true if the page must be copied before it is written.
+     */
+    protected boolean isCopyOnWrite(int vpn) {
+        return pageTable[vpn].readOnly && sharedPageKey(vpn) == null;
+    }
+
+    /**
+     * Makes a copy-on-write page writable. If another process still maps the physical page, this process gets
+     * a private copy of it first; otherwise the page is simply made writable.
+     *
+     * @param vpn The virtual page number of the page
+     * @return Returns true if the page is now writable. Returns false if it is not a copy-on-write page or no
+     * physical page is free for the copy.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+        if (!pageTable[vpn].valid || !isCopyOnWrite(vpn)) return false;
+
+        TranslationEntry entry = pageTable[vpn];
+
+        if (UserKernel.physicalPageReferences(entry.ppn) > 1) {
+            int ppn = UserKernel.fetchPhysicalPage();
+            if (ppn == -1) {
+                Lib.debug(dbgProcess, "\tno free physical page to copy vpn " + vpn);
+                return false;
+            }
+
+            if (UserKernel.isZeroPage(entry.ppn))
+                Machine.processor().getMainMemory().fill(ppn * pageSize, pageSize, (byte) 0);
+            else
+                copyPhysicalPage(entry.ppn, ppn);
+
+            UserKernel.unmapPhysicalPages(new int[]{entry.ppn}, 1, this);
+            UserKernel.addPhysicalPage(entry.ppn);
+
+            entry.ppn = ppn;
+            UserKernel.mapPhysicalPage(ppn, this, vpn);
+
+            if (translations != null && sectionOf(vpn) != null) {
+                translations.pageUnloaded(vpn);
+                translations.pageLoaded(vpn, ppn);
+            }
+        }
+
+        entry.readOnly = false;
+        return true;
+    }
+
+    /**
+     * Copies the contents of one physical page to another.
+     *
+     * @param from The page to copy
+     * @param to   The page to overwrite
+     */
+    protected static void copyPhysicalPage(int from, int to) {
+        MainMemory memory = Machine.processor().getMainMemory();
+        byte[] buffer = new byte[pageSize];
+
+        memory.read(from * pageSize, buffer, 0, pageSize);
+        memory.write(to * pageSize, buffer, 0, pageSize);
+    }
+
+    /**
+     * Makes this new process a copy of the specified process, which is executing a <tt>fork()</tt> syscall.
+     * Every resident page is shared instead of copied: writable pages become copy-on-write in both processes,
+     * and each shared physical page gains a reference. The child also shares the parent's executable image, but
+     * not its open files, so files the parent has mapped into memory are left out of the child's address space.
+     *
+     * @param parent The process being duplicated
+     * @return Returns true if the copy was made.
+     */
+    protected boolean forkFrom(UserProcess parent) {
+        // images are immutable, so the child runs the parent's image even if the file has changed since
+        coff = parent.coff;
+        coffName = parent.coffName;
+        coffKey = parent.coffKey;
+
+        numPages = parent.numPages;
+        initialPC = parent.initialPC;
+        initialSP = parent.initialSP;
+        argc = parent.argc;
+        argv = parent.argv;
+
+        pageTable = new TranslationEntry[parent.pageTable.length];
+        for (int vpn = 0; vpn < pageTable.length; vpn++) {
+            TranslationEntry entry = parent.pageTable[vpn];
+
+            if (parent.mappingOf(vpn) != null) {
+                pageTable[vpn] = new TranslationEntry(-1, -1, false, false, false, false);
+                continue;
+            }
+
+            pageTable[vpn] = new TranslationEntry(entry);
+
+            if (entry.valid) {
+                UserKernel.referencePhysicalPage(entry.ppn);
+                UserKernel.mapPhysicalPage(entry.ppn, this, vpn);
+
+                entry.readOnly = true;
+                pageTable[vpn].readOnly = true;
+            }
+        }
+
+        if (Machine.translationCache() != null) {
+            translations = Machine.translationCache().open(coffName);
+
+            for (int vpn = 0; translations != null && vpn < pageTable.length; vpn++) {
+                if (pageTable[vpn].valid && sectionOf(vpn) != null)
+                    translations.pageLoaded(vpn, pageTable[vpn].ppn);
+            }
+        }
+
+        // the child resumes after the syscall, with 0 as the result
+        Processor processor = Machine.processor();
+        forkedRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            forkedRegisters[i] = processor.readRegister(i);
+
+        forkedRegisters[Processor.regV0] = 0;
+        forkedRegisters[Processor.regPC] = forkedRegisters[Processor.regNextPC];
+        forkedRegisters[Processor.regNextPC] += 4;
+
+        return true;
+    }
+
+    /**
+     * Returns the section of the executable containing a virtual page.
+     *
+     * @param vpn The virtual page number of the page
+     * @return Returns the section, or null if the page is part of the stack or arguments.
+     */
+    protected CoffSection sectionOf(int vpn) {
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+            if (vpn >= section.getFirstVPN() && vpn < section.getFirstVPN() + section.getLength())
+                return section;
+        }
+
+        return null;
+    }
+
+    /**
+     * A file mapped into the address space by <tt>mmap()</tt>. Its pages are filled from the file when they are
+     * first touched, and written back to the file if they are dirty when they leave memory.
+     */
+    protected static class FileMapping {
+        /**
+         * Describes a file mapped at a virtual page.
+         *
+         * @param fileDescriptor The descriptor the file was mapped through
+         * @param file           The mapped file
+         * @param firstVPN       The virtual page holding the start of the file
+         * @param length         The length of the file when it was mapped, in bytes
+         */
+        FileMapping(int fileDescriptor, OpenFile file, int firstVPN, int length) {
+            this.fileDescriptor = fileDescriptor;
+            this.file = file;
+            this.firstVPN = firstVPN;
+            this.numPages = Lib.divRoundUp(length, pageSize);
+            this.length = length;
+        }
+
+        /**
+         * Returns whether a virtual page is part of this map.
+         *
+         * @param vpn The virtual page number of the page
+         * @return Returns true if the page holds part of the file.
+         */
+        public boolean contains(int vpn) {
+            return vpn >= firstVPN && vpn < firstVPN + numPages;
+        }
+
+        /**
+         * Fills a physical page with the part of the file held by a page of the map. Bytes past the end of the
+         * file read as zeros.
+         *
+         * @param vpn The virtual page number of the page
+         * @param ppn The physical page to fill
+         */
+        public void readPage(int vpn, int ppn) {
+            MainMemory memory = Machine.processor().getMainMemory();
+            int position = (vpn - firstVPN) * pageSize;
+            int amount = Math.min(pageSize, length - position);
+
+            int bytesRead = Math.max(memory.readFrom(file, position, ppn * pageSize, amount), 0);
+            memory.fill(ppn * pageSize + bytesRead, pageSize - bytesRead, (byte) 0);
+        }
+
+        /**
+         * Writes a page of the map back to the file. Bytes past the end of the file, as it was mapped, are not
+         * written, so the file never grows.
+         *
+         * @param vpn The virtual page number of the page
+         * @param ppn The physical page holding it
+         */
+        public void writePage(int vpn, int ppn) {
+            MainMemory memory = Machine.processor().getMainMemory();
+            int position = (vpn - firstVPN) * pageSize;
+            int amount = Math.min(pageSize, length - position);
+
+            if (memory.writeTo(file, position, ppn * pageSize, amount) != amount)
+                Lib.debug(dbgProcess, "\tcould not write back page " + vpn + " of " + file.getName());
+        }
+
+        private int fileDescriptor;
+        private OpenFile file;
+        private int firstVPN, numPages, length;
+    }
+
+    /**
+     * Returns the mapped file holding a virtual page.
+     *
+     * @param vpn The virtual page number of the page
+     * @return Returns the map, or null if the page is not part of a mapped file.
+     */
+    protected FileMapping mappingOf(int vpn) {
+        for (FileMapping mapping : fileMappings) {
+            if (mapping.contains(vpn))
+                return mapping;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the map made through a file descriptor.
+     *
+     * @param fileDescriptor The file descriptor
+     * @return Returns the map, or null if the file is not mapped.
+     */
+    private FileMapping mappingOfFile(int fileDescriptor) {
+        for (FileMapping mapping : fileMappings) {
+            if (mapping.fileDescriptor == fileDescriptor)
+                return mapping;
+        }
+
+        return null;
+    }
+
+    /**
+     * Gives a page of a mapped file that has not been touched yet a physical page, filled from the file.
+     *
+     * @param vpn The virtual page number of the page
+     * @return Returns true if the page is now valid. Returns false if it is not a page of a mapped file, or no
+     * physical page is free.
+     */
+    protected boolean faultInMappedPage(int vpn) {
+        FileMapping mapping = mappingOf(vpn);
+        if (mapping == null || pageTable[vpn].valid) return false;
+
+        int ppn = UserKernel.fetchPhysicalPage();
+        if (ppn == -1) {
+            Lib.debug(dbgProcess, "\tno free physical page for mapped vpn " + vpn);
+            return false;
+        }
+
+        mapping.readPage(vpn, ppn);
+
+        TranslationEntry entry = pageTable[vpn];
+        entry.ppn = ppn;
+        entry.used = false;
+        entry.dirty = false;
+        entry.valid = true;
+        UserKernel.mapPhysicalPage(ppn, this, vpn);
+
+        return true;
+    }
+
+    /**
+     * Removes a mapped file from the address space. Dirty pages are written back to the file first, and the
+     * physical pages are freed.
+     *
+     * @param mapping The map to remove
+     */
+    protected void unmapFile(FileMapping mapping) {
+        int[] freedPages = new int[mapping.numPages];
+        int numberOfFreedPages = 0;
+
+        for (int vpn = mapping.firstVPN; vpn < mapping.firstVPN + mapping.numPages; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+
+            if (entry.valid) {
+                if (entry.dirty)
+                    mapping.writePage(vpn, entry.ppn);
+
+                freedPages[numberOfFreedPages++] = entry.ppn;
+            }
+
+            pageTable[vpn] = new TranslationEntry(-1, -1, false, false, false, false);
+        }
+
+        UserKernel.unmapPhysicalPages(freedPages, numberOfFreedPages, this);
+        UserKernel.addPhysicalPages(freedPages, numberOfFreedPages);
+
+        fileMappings.remove(mapping);
+
+        if (!Machine.processor().hasTLB())
+            Machine.processor().setPageTable(pageTable);
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -341,22 +825,26 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-        if (executable == null) {
-            Lib.debug(dbgProcess, "\topen failed");
-//            System.out.println("Failed to open file");
-            return false;
-        }
+        ExecutableCache.Image image;
 
         try {
-            coff = new Coff(executable);
+            image = UserKernel.executables.load(name);
         } catch (EOFException e) {
-            executable.close();
 //            System.out.println("Failed to load coff");
             Lib.debug(dbgProcess, "\tcoff load failed");
             return false;
         }
 
+        if (image == null) {
+            Lib.debug(dbgProcess, "\topen failed");
+//            System.out.println("Failed to open file");
+            return false;
+        }
+
+        coff = image;
+        coffName = name;
+        coffKey = image.getKey();
+
         // make sure the sections are contiguous and start at page 0
 
         // trying to allocate physical pages for each section of the COFF, if failed clearing them all
@@ -457,6 +945,9 @@ public class UserProcess {
             return false;
         }
 
+        if (Machine.translationCache() != null)
+            translations = Machine.translationCache().open(coffName);
+
         // load sections
 
         for (int s = 0; s < coff.getNumSections(); s++) {
@@ -466,9 +957,24 @@ public class UserProcess {
             Lib.debug(dbgProcess, "\tinitializing " + section.getName()
                     + " section (" + section.getLength() + " pages)");
 
+            // a shared page has already been loaded by the process that published it, and the zero page is
+            // never loaded
+            int[] pages = new int[section.getLength()];
+            for (int i = 0; i < section.getLength(); i++) {
+                int ppn = pageTable[section.getFirstVPN() + i].ppn;
+                pages[i] = section.isReadOnly() && UserKernel.isSharedPage(ppn) || UserKernel.isZeroPage(ppn) ? -1 : ppn;
+            }
+
+            section.loadSection(pages);
+
             for (int i = 0; i < section.getLength(); i++) {
                 int vpn = section.getFirstVPN() + i;
-                section.loadPage(i, pageTable[vpn].ppn);
+
+                if (section.isReadOnly() && pages[i] != -1)
+                    UserKernel.sharePhysicalPage(sharedPageKey(vpn), pages[i]);
+
+                if (translations != null)
+                    translations.pageLoaded(vpn, pageTable[vpn].ppn);
             }
         }
 
@@ -477,15 +983,21 @@ public class UserProcess {
 
     /**
      * This method frees all pages that have been previously allocated for this UserProcess.
-     * For each allocated page, this method calls <b>UserKernel.addPhysicalPage</b> to add the
-     * newly freed page to the Kernel's list of available physical pages.
+     * The allocated pages are collected and returned to the Kernel's available physical pages
+     * with a single call to <b>UserKernel.addPhysicalPages</b>.
      * <p>
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+        int[] freedPages = new int[pageTable.length];
+        int numberOfFreedPages = 0;
+
         for (int i = 0; i < pageTable.length; i++) {
             if (pageTable[i].valid) {
-                UserKernel.addPhysicalPage(pageTable[i].ppn);
+                if (translations != null)
+                    translations.pageUnloaded(i);
+
+                freedPages[numberOfFreedPages++] = pageTable[i].ppn;
 
                 pageTable[i].valid = false;
                 pageTable[i].readOnly = false;
@@ -493,8 +1005,16 @@ public class UserProcess {
                 pageTable[i].ppn = -1;
             }
         }
+        UserKernel.unmapPhysicalPages(freedPages, numberOfFreedPages, this);
+        UserKernel.addPhysicalPages(freedPages, numberOfFreedPages);
+
         // Enforces the knowledge that currently no pages are allocated for this UserProcess
         numPages = 0;
+
+        if (translations != null) {
+            translations.close();
+            translations = null;
+        }
     }
 
     /**
@@ -507,6 +1027,14 @@ public class UserProcess {
     public void initRegisters() {
         Processor processor = Machine.processor();
 
+        // a forked process continues from where its parent was
+        if (forkedRegisters != null) {
+            for (int i = 0; i < Processor.numUserRegisters; i++)
+                processor.writeRegister(i, forkedRegisters[i]);
+            forkedRegisters = null;
+            return;
+        }
+
         // by default, everything's 0
         for (int i = 0; i < Processor.numUserRegisters; i++)
             processor.writeRegister(i, 0);
@@ -559,16 +1087,28 @@ public class UserProcess {
      * @return Returns -1 upon failure. Returns the number of bytes that have been read upon success.
      */
     private int handleRead(int fileDescriptor, int virtualMemoryAddress, int byteCount) {
-        if (fileDescriptor > 1 || fileDescriptor < 0 || byteCount < 0) return -1;
+        OpenFile file = fileFor(fileDescriptor);
+        if (file == null || byteCount < 0) return -1;
 
         if (virtualMemoryAddress < 0) return 0;
 
+        // reading nothing from a stream is an error, but reading nothing from a disk file means end of file
+        int emptyRead = file.length() < 0 ? -1 : 0;
+
+        int[] runs = getPhysicalRuns(virtualMemoryAddress, byteCount, true);
+        if (runs != null) {
+            int bytesRead = transferPhysicalRuns(file, runs, true);
+            releasePhysicalRuns(virtualMemoryAddress, byteCount);
+
+            return bytesRead == 0 ? emptyRead : bytesRead;
+        }
+
         byte[] buffer = new byte[byteCount];
 
-        int bytesRead = fileDescriptor == 0 ? inputStream.read(buffer, 0, byteCount) : -1;
+        int bytesRead = file.read(buffer, 0, byteCount);
 
-        if ((bytesRead * bytesRead + bytesRead) == 0) {
-            return -1;
+        if (bytesRead <= 0) {
+            return bytesRead == 0 ? emptyRead : -1;
         }
 
         return writeVirtualMemory(virtualMemoryAddress, buffer, 0, bytesRead);
@@ -598,16 +1138,174 @@ public class UserProcess {
      * @return Returns -1 upon failure. Returns the number of bytes that have been written upon success.
      */
     private int handleWrite(int fileDescriptor, int virtualMemoryAddress, int byteCount) {
-        if (fileDescriptor > 1 || fileDescriptor < 0 || byteCount < 0) return -1;
+        OpenFile file = fileFor(fileDescriptor);
+        if (file == null || byteCount < 0) return -1;
+
+        int[] runs = getPhysicalRuns(virtualMemoryAddress, byteCount, false);
+        if (runs != null) {
+            int bytesWritten = transferPhysicalRuns(file, runs, false);
+            releasePhysicalRuns(virtualMemoryAddress, byteCount);
+
+            return (bytesWritten * (bytesWritten - byteCount)) == 0 ? bytesWritten : -1;
+        }
 
         byte[] buffer = new byte[byteCount];
 
-        int bytesWritten = fileDescriptor == 0 ? inputStream.write(buffer, 0, readVirtualMemory(virtualMemoryAddress, buffer, 0, byteCount))
-                : outputStream.write(buffer, 0, readVirtualMemory(virtualMemoryAddress, buffer, 0, byteCount));
+        int bytesWritten = file.write(buffer, 0, readVirtualMemory(virtualMemoryAddress, buffer, 0, byteCount));
 
         return (bytesWritten * (bytesWritten - byteCount)) == 0 ? bytesWritten : -1;
     }
 
+    /**
+     * Returns the file a descriptor refers to, for <tt>read()</tt> and <tt>write()</tt>.
+     *
+     * @param fileDescriptor The file descriptor
+     * @return Returns the file, or null if the descriptor is not open or its file is mapped into memory.
+     */
+    private OpenFile fileFor(int fileDescriptor) {
+        if (fileDescriptor < 0 || fileDescriptor >= MAX_OPEN_FILES || mappingOfFile(fileDescriptor) != null)
+            return null;
+
+        return openFiles[fileDescriptor];
+    }
+
+    /**
+     * Attempt to open the named disk file, creating it if it does not exist (for <tt>creat()</tt>), and return a
+     * file descriptor that can be used to access the file. Neither <tt>creat()</tt> nor <tt>open()</tt> ever
+     * returns a file descriptor referring to a stream.
+     *
+     * @param fileNameVirtualAddress The virtual address of the location where the file name is stored
+     * @param create                 Whether to create the file, as <tt>creat()</tt> does
+     * @return Returns the new file descriptor, or -1 upon failure.
+     */
+    private int handleOpen(int fileNameVirtualAddress, boolean create) {
+        String fileName = readVirtualMemoryString(fileNameVirtualAddress, MAX_STRING_SIZE);
+
+        if (fileName == null) {
+            Lib.debug(dbgProcess, "handleOpen: Invalid file name");
+            return -1;
+        }
+
+        int fileDescriptor = 0;
+        while (fileDescriptor < MAX_OPEN_FILES && openFiles[fileDescriptor] != null)
+            fileDescriptor++;
+
+        if (fileDescriptor == MAX_OPEN_FILES) {
+            Lib.debug(dbgProcess, "handleOpen: Too many open files");
+            return -1;
+        }
+
+        OpenFile file = ThreadedKernel.fileSystem.open(fileName, create);
+
+        if (file == null) {
+            Lib.debug(dbgProcess, "handleOpen: Could not open " + fileName);
+            return -1;
+        }
+
+        openFiles[fileDescriptor] = file;
+        return fileDescriptor;
+    }
+
+    /**
+     * Close a file descriptor, so that it no longer refers to any file or stream and may be reused. If the
+     * file is mapped into memory, the dirty pages of the map are written to the file and the map is removed.
+     *
+     * @param fileDescriptor The file descriptor to close
+     * @return Returns 0 on success, or -1 if the file descriptor is not open.
+     */
+    private int handleClose(int fileDescriptor) {
+        if (fileDescriptor < 0 || fileDescriptor >= MAX_OPEN_FILES || openFiles[fileDescriptor] == null)
+            return -1;
+
+        FileMapping mapping = mappingOfFile(fileDescriptor);
+        if (mapping != null)
+            unmapFile(mapping);
+
+        openFiles[fileDescriptor].close();
+        openFiles[fileDescriptor] = null;
+
+        return 0;
+    }
+
+    /**
+     * Map the disk file referenced by a file descriptor into the address space, starting at a page-aligned
+     * address. No page of the file is read until it is first touched, and only dirty pages are written back
+     * when the map is removed, so programs that stream a whole file avoid copying it through
+     * <tt>read()</tt> and <tt>write()</tt>.
+     * <p>
+     * The map must not overlap the program or another map, and must end within <tt>MAX_MAPPED_PAGES</tt> pages of
+     * the end of the program. Further <tt>read()</tt> and <tt>write()</tt> calls on
+     * the file descriptor fail until it is closed or the map is removed with <tt>munmap()</tt>.
+     *
+     * @param fileDescriptor The file descriptor of the file to map
+     * @param address        The virtual address at which to map the start of the file
+     * @return Returns the length of the file, or -1 upon failure.
+     */
+    private int handleMmap(int fileDescriptor, int address) {
+        if (fileDescriptor < 0 || fileDescriptor >= MAX_OPEN_FILES || openFiles[fileDescriptor] == null
+                || mappingOfFile(fileDescriptor) != null) {
+            Lib.debug(dbgProcess, "handleMmap: Invalid file descriptor");
+            return -1;
+        }
+
+        OpenFile file = openFiles[fileDescriptor];
+        int length = file.length();
+
+        // streams have no length
+        if (length < 0 || address < 0 || Processor.offsetFromAddress(address) != 0
+                || length > Integer.MAX_VALUE - address) {
+            Lib.debug(dbgProcess, "handleMmap: Invalid file or address");
+            return -1;
+        }
+
+        FileMapping mapping = new FileMapping(fileDescriptor, file, Processor.pageFromAddress(address), length);
+
+        // the page table covers every page up to the end of the map, so maps must stay near the program
+        if (mapping.firstVPN + mapping.numPages > numPages + MAX_MAPPED_PAGES) {
+            Lib.debug(dbgProcess, "handleMmap: Map ends too far above the program");
+            return -1;
+        }
+
+        for (int vpn = mapping.firstVPN; vpn < mapping.firstVPN + mapping.numPages; vpn++) {
+            if (vpn < pageTable.length && pageTable[vpn].vpn == vpn) {
+                Lib.debug(dbgProcess, "handleMmap: Address is already in use");
+                return -1;
+            }
+        }
+
+        growPageTable(mapping.firstVPN + mapping.numPages);
+
+        for (int vpn = mapping.firstVPN; vpn < mapping.firstVPN + mapping.numPages; vpn++)
+            pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+
+        fileMappings.add(mapping);
+
+        if (!Machine.processor().hasTLB())
+            Machine.processor().setPageTable(pageTable);
+
+        return length;
+    }
+
+    /**
+     * Remove the map starting at an address, made by <tt>mmap()</tt>. The dirty pages of the map are written to
+     * the file, and the file descriptor can be read and written again.
+     *
+     * @param address The address the file was mapped at
+     * @return Returns 0 on success, or -1 if no map starts at the address.
+     */
+    private int handleMunmap(int address) {
+        for (FileMapping mapping : fileMappings) {
+            if (address >= 0 && Processor.offsetFromAddress(address) == 0
+                    && mapping.firstVPN == Processor.pageFromAddress(address)) {
+                unmapFile(mapping);
+                return 0;
+            }
+        }
+
+        Lib.debug(dbgProcess, "handleMunmap: No map at address");
+        return -1;
+    }
+
     /**
      * Execute the program stored in the specified file, with the specified
      * arguments, in a new child process. The child process has a new unique
@@ -696,6 +1394,38 @@ public class UserProcess {
         return childProcess.processID;
     }
 
+    /**
+     * Create a new child process that is a copy of the current process. The child has a new unique process ID
+     * and starts with stdin opened as file descriptor 0, and stdout opened as file descriptor 1. Both processes
+     * continue from the return of fork().
+     * <p>
+     * No memory is copied when the child is created. The two processes share every physical page, and a page is
+     * copied only when one of them first writes to it. If no physical page is free for that copy, only the writing
+     * process is terminated, as if by an unhandled exception, and its parent's join returns 0.
+     * <p>
+     * fork() returns the child process's process ID in the parent, which can be passed to join(), and 0 in the
+     * child. On error, returns -1.
+     *
+     * @return Returns the process ID of the child, or -1 upon failure.
+     */
+    private int handleFork() {
+        UserProcess childProcess = UserProcess.newUserProcess();
+
+        if (!childProcess.forkFrom(this)) {
+            Lib.debug(dbgProcess, "handleFork: Could not copy the process");
+            return -1;
+        }
+
+        childProcess.parentProcess = this;
+
+        childProcesses.add(childProcess);
+
+        childProcess.processThread = (UThread) new UThread(childProcess).setName(coffName);
+        childProcess.processThread.fork();
+
+        return childProcess.processID;
+    }
+
     /**
      * Suspend execution of the current process until the child process specified
      * by the processID argument has exited. If the child has already exited by the
@@ -771,17 +1501,26 @@ public class UserProcess {
      * (but is not required to) set status to 0.
      * <p>
      * exit() never returns.
+     * <p>
+     * The kernel also calls this to terminate a process that cannot continue, with a null status, so that the
+     * parent's join() reports the process as killed by an unhandled exception.
      *
-     * @param status The exit status of the current process
+     * @param status The exit status of the current process, or null if the kernel is terminating it
      */
-    private void handleExit(int status) {
+    private void handleExit(Integer status) {
 
-        if (parentProcess != null) {
+        if (parentProcess != null && status != null) {
             parentProcess.exitStatusLock.acquire();
             parentProcess.childProcessExitStatus.put(processID, status);
             parentProcess.exitStatusLock.release();
         }
 
+        // closing a mapped file writes back its dirty pages
+        for (int fileDescriptor = 0; fileDescriptor < MAX_OPEN_FILES; fileDescriptor++) {
+            if (openFiles[fileDescriptor] != null)
+                handleClose(fileDescriptor);
+        }
+
         unloadSections();
 
         int numberOfChildProcesses = childProcesses.size();
@@ -808,7 +1547,10 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallMmap = 10,
+            syscallFork = 13,
+            syscallMunmap = 14;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -829,6 +1571,9 @@ public class UserProcess {
      * 								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  munmap(char *address);</tt></td></tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -848,10 +1593,22 @@ public class UserProcess {
                 return handleExec(a0, a1, a2);
             case syscallJoin:
                 return handleJoin(a0, a1);
+            case syscallCreate:
+                return handleOpen(a0, true);
+            case syscallOpen:
+                return handleOpen(a0, false);
             case syscallRead:
                 return handleRead(a0, a1, a2);
             case syscallWrite:
                 return handleWrite(a0, a1, a2);
+            case syscallClose:
+                return handleClose(a0);
+            case syscallMmap:
+                return handleMmap(a0, a1);
+            case syscallFork:
+                return handleFork();
+            case syscallMunmap:
+                return handleMunmap(a0);
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);
                 Lib.assertNotReached("Unknown system call!");
@@ -882,6 +1639,37 @@ public class UserProcess {
                 processor.advancePC();
                 break;
 
+            case Processor.exceptionPageFault:
+                // pages of a mapped file are read in when they are first touched
+                int faultVPN = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+                if (faultInMappedPage(faultVPN)) break;
+                // the page is mapped, but no physical page is free to read it into, so only this process fails
+                if (mappingOf(faultVPN) != null) {
+                    Lib.debug(dbgProcess, "No physical page for mapped vpn " + faultVPN + ", terminating process " + processID);
+                    handleExit(null);
+                } else {
+                    Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
+                    Lib.assertNotReached("Unexpected exception");
+                }
+                break;
+
+            case Processor.exceptionReadOnly:
+                int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+
+                // a write to a copy-on-write page is retried once the page has been copied
+                if (breakCopyOnWrite(vpn))
+                    break;
+
+                // the write is valid, but no physical page is free for the copy, so only this process fails
+                if (vpn < pageTable.length && pageTable[vpn].valid && isCopyOnWrite(vpn)) {
+                    Lib.debug(dbgProcess, "No physical page to copy vpn " + vpn + ", terminating process " + processID);
+                    handleExit(null);
+                } else {
+                    Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
+                    Lib.assertNotReached("Unexpected exception");
+                }
+                break;
+
             default:
                 Lib.debug(dbgProcess, "Unexpected exception: " +
                         Processor.exceptionNames[cause]);
@@ -893,6 +1681,19 @@ public class UserProcess {
      * The program being run by this process.
      */
     protected Coff coff;
+    /**
+     * The file name of the program being run by this process.
+     */
+    protected String coffName;
+    /**
+     * The name and version of the program's image, which names its shared pages.
+     */
+    protected String coffKey;
+    /**
+     * The saved translations of the program, or <tt>null</tt> if they are
+     * not cached.
+     */
+    protected TranslationCache.Image translations;
 
     /**
      * This process's page table.
@@ -903,6 +1704,11 @@ public class UserProcess {
      */
     protected int numPages;
 
+    /**
+     * The files mapped into this process's address space.
+     */
+    protected ArrayList<FileMapping> fileMappings = new ArrayList<>();
+
     /**
      * The number of pages in the program's stack.
      */
@@ -910,18 +1716,20 @@ public class UserProcess {
 
     private int initialPC, initialSP;
     private int argc, argv;
+    private int[] forkedRegisters = null;
 
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 
 
     // Task-1 Variables
-    private final OpenFile inputStream = UserKernel.console.openForReading();
-    private final OpenFile outputStream = UserKernel.console.openForWriting();
+    private final OpenFile[] openFiles = new OpenFile[MAX_OPEN_FILES];  // indexed by file descriptor
     private static int processCounter = 0;
     private int processID;
     private static final int ROOT_PROCESS = 0;
     private static final int MAX_STRING_SIZE = 64;
+    private static final int MAX_OPEN_FILES = 16;
+    private static final int MAX_MAPPED_PAGES = 1024;  // address space above the program usable by mmap()
 
     protected Lock processIDLock = new Lock();
 
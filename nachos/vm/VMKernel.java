@@ -5,8 +5,22 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Replacement works from the core map kept by <tt>UserKernel</tt>, which
+ * records which processes and virtual page each physical page holds;
+ * read-only pages of an executable are shared by every process running it.
+ * When no physical page is free, a victim is chosen by the clock algorithm:
+ * pages whose reference bit or <tt>used</tt> bits are set get a second
+ * chance, and the first page found without them is evicted. Dirty pages
+ * are written to a swap file first; clean pages are simply dropped, since
+ * they can be read again from the executable, the swap file, or
+ * zero-filled.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -17,15 +31,36 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Creates the swap file, and reads the TLB
+     * replacement policy from <tt>VMKernel.tlbReplacement</tt>
+     * (<tt>fifo</tt>, the default, <tt>random</tt> or <tt>nru</tt>) and
+     * whether to prefetch from <tt>VMKernel.tlbPrefetch</tt>.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	vmLock = new Lock();
+
+	String replacement = Config.getString("VMKernel.tlbReplacement", "fifo");
+	if (replacement.equals("fifo"))
+	    tlbReplacement = tlbFIFO;
+	else if (replacement.equals("random"))
+	    tlbReplacement = tlbRandom;
+	else if (replacement.equals("nru"))
+	    tlbReplacement = tlbNRU;
+	else
+	    Lib.assertNotReached("VMKernel.tlbReplacement must be fifo, random or nru");
+
+	tlbPrefetch = Config.getBoolean("VMKernel.tlbPrefetch", false);
+
+	swapFileName = Config.getString("VMKernel.swapFile", "nachos.swap");
+	swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+	Lib.assertTrue(swapFile != null, "could not create swap file");
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,16 +71,187 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (swapFile != null) {
+	    swapFile.close();
+	    ThreadedKernel.fileSystem.remove(swapFileName);
+	}
+
 	super.terminate();
     }
 
+    /**
+     * Take a physical page for the specified virtual page of a process,
+     * evicting another page if none is free, and enter it in the core map.
+     * The caller must hold the VM lock.
+     *
+     * @param	process	the process the page is for.
+     * @param	vpn	the virtual page the page will hold.
+     * @return	the physical page number, or -1 if every page is pinned.
+     */
+    static int allocatePage(VMProcess process, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	int ppn = fetchPhysicalPage();
+	if (ppn == -1 && evictPage())
+	    ppn = fetchPhysicalPage();
+
+	if (ppn != -1)
+	    mapPhysicalPage(ppn, process, vpn);
+
+	return ppn;
+    }
+
+    /**
+     * Choose a victim with the clock algorithm and evict it from every
+     * process that maps it, freeing the physical page. A page counts as
+     * used if its reference bit is set or any of its processes used it
+     * since the last sweep.
+     *
+     * @return	<tt>true</tt> if a page was freed, or <tt>false</tt> if every
+     *		page is pinned.
+     */
+    private static boolean evictPage() {
+	// two sweeps: the first may only clear used bits
+	for (int i=0; i<2*coreMap.length; i++) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand + 1) % coreMap.length;
+
+	    CoreMapEntry entry = coreMap[ppn];
+	    if (entry.processes.isEmpty() || entry.pinCount > 0)
+		continue;
+
+	    boolean used = entry.used;
+	    entry.used = false;
+	    for (UserProcess process : entry.processes)
+		used |= ((VMProcess) process).clearUsed(entry.vpn);
+
+	    if (used)
+		continue;
+
+	    Lib.debug(dbgVM, "\tevicting ppn " + ppn + " (vpn " + entry.vpn
+		      + ", " + entry.processes.size() + " mappings)");
+
+	    UserProcess[] owners =
+		entry.processes.toArray(new UserProcess[0]);
+	    int[] references = new int[owners.length];
+	    Arrays.fill(references, ppn);
+
+	    for (UserProcess process : owners) {
+		((VMProcess) process).evict(entry.vpn);
+		unmapPhysicalPages(references, 1, process);
+	    }
+
+	    addPhysicalPages(references, references.length);
+	    return true;
+	}
+
+	Lib.debug(dbgVM, "\tevery physical page is pinned");
+	return false;
+    }
+
+    /**
+     * Write a physical page to the swap file.
+     *
+     * @param	ppn	the page to write.
+     * @param	slot	the swap slot to reuse, or -1 to take a new one.
+     * @return	the swap slot holding the page.
+     */
+    static int swapOut(int ppn, int slot) {
+	if (slot == -1)
+	    slot = freeSwapSlots.isEmpty() ? numSwapSlots++
+		: freeSwapSlots.removeFirst();
+
+	int written = Machine.processor().getMainMemory()
+	    .writeTo(swapFile, slot*pageSize, ppn*pageSize, pageSize);
+
+	Lib.assertTrue(written == pageSize, "swap file write failed");
+	return slot;
+    }
+
+    /**
+     * Read a page from the swap file into physical memory. The slot keeps
+     * its contents until it is freed.
+     *
+     * @param	slot	the swap slot to read.
+     * @param	ppn	the physical page to read into.
+     */
+    static void swapIn(int slot, int ppn) {
+	int read = Machine.processor().getMainMemory()
+	    .readFrom(swapFile, slot*pageSize, ppn*pageSize, pageSize);
+
+	Lib.assertTrue(read == pageSize, "swap file read failed");
+    }
+
+    /**
+     * Copy a swap slot to a new slot. The caller must hold the VM lock.
+     *
+     * @param	slot	the slot to copy.
+     * @return	the new slot.
+     */
+    static int copySwapSlot(int slot) {
+	int copy = freeSwapSlots.isEmpty() ? numSwapSlots++
+	    : freeSwapSlots.removeFirst();
+
+	byte[] buffer = new byte[pageSize];
+	Lib.assertTrue(swapFile.read(slot*pageSize, buffer, 0, pageSize)
+		       == pageSize, "swap file read failed");
+	Lib.assertTrue(swapFile.write(copy*pageSize, buffer, 0, pageSize)
+		       == pageSize, "swap file write failed");
+
+	return copy;
+    }
+
+    /**
+     * Return a swap slot to the free list. The caller must hold the VM lock.
+     *
+     * @param	slot	the slot to free.
+     */
+    static void freeSwapSlot(int slot) {
+	freeSwapSlots.add(slot);
+    }
+
+    /**
+     * Protects the core map, the swap file, and every process's page table
+     * while pages move in and out of physical memory. Every change to the
+     * core map in a VM process happens under this lock, so the clock can
+     * scan it without the page lock.
+     */
+    static Lock vmLock;
+
+    /** Replace TLB entries in turn. */
+    static final int tlbFIFO = 0;
+    /** Replace a TLB entry chosen at random. */
+    static final int tlbRandom = 1;
+    /**
+     * Replace the next TLB entry, in turn, that has not been used since all
+     * the used bits were last cleared.
+     */
+    static final int tlbNRU = 2;
+
+    /** The TLB replacement policy, one of the <tt>tlbZZZ</tt> constants. */
+    static int tlbReplacement = tlbFIFO;
+    /**
+     * <tt>true</tt> if a TLB miss also loads the entry of the next page, if
+     * it is resident.
+     */
+    static boolean tlbPrefetch = false;
+
+    private static int clockHand = 0;
+
+    private static String swapFileName;
+    private static OpenFile swapFile = null;
+    private static int numSwapSlots = 0;
+    private static LinkedList<Integer> freeSwapSlots =
+	new LinkedList<Integer>();
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
@@ -5,8 +5,21 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No physical memory is allocated when the executable is loaded. Every page
+ * of the address space starts out invalid, and is given a physical page the
+ * first time it is touched: COFF pages are read from the executable, and
+ * stack and argument pages are zero-filled. Read-only pages are shared with
+ * other processes running the same executable. Pages may later be evicted by
+ * <tt>VMKernel</tt>, and are then read back from the swap file if they were
+ * dirty, or loaded again as on first touch if they were not. Pages of a
+ * mapped file are read from the file, and written back to it instead of the
+ * swap file.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -14,6 +27,9 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	swapSlots = new int[pageTable.length];
+	Arrays.fill(swapSlots, -1);
     }
 
     /**
@@ -22,14 +38,63 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	for (int i=0; i<Machine.processor().getTLBSize(); i++)
+	    syncTLBEntry(i);
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB is flushed only if another
+     * process has run since this one was saved; a timer interrupt that
+     * yields back to the same process keeps its entries.
      */
     public void restoreState() {
 	super.restoreState();
+
+	if (tlbOwner == this)
+	    return;
+
+	tlbOwner = this;
+
+	Processor processor = Machine.processor();
+	TranslationEntry invalid = new TranslationEntry();
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, invalid);
+    }
+
+    /**
+     * Grow the page table, and the swap slots alongside it.
+     */
+    protected void growPageTable(int length) {
+	int oldLength = pageTable.length;
+	super.growPageTable(length);
+
+	if (pageTable.length > oldLength) {
+	    swapSlots = Arrays.copyOf(swapSlots, pageTable.length);
+	    Arrays.fill(swapSlots, oldLength, swapSlots.length, -1);
+	}
+    }
+
+    /**
+     * Reserve virtual pages without giving them any physical memory. Unlike
+     * <tt>UserProcess</tt>, the address space may be larger than physical
+     * memory.
+     *
+     * @param	firstVPN	the first virtual page to reserve.
+     * @param	numVPNs		the number of pages to reserve.
+     * @param	readOnly	whether the pages are read-only.
+     * @return	<tt>true</tt>.
+     */
+    protected boolean tryAllocate(int firstVPN, int numVPNs, boolean readOnly) {
+	growPageTable(firstVPN + numVPNs);
+
+	for (int vpn=firstVPN; vpn<firstVPN+numVPNs; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, readOnly,
+						  false, false);
+
+	numPages += numVPNs;
+	return true;
     }
 
     /**
@@ -39,15 +104,559 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	if (Machine.translationCache() != null)
+	    translations = Machine.translationCache().open(coffName);
+
+	return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>, including
+     * this process's physical pages and swap slots.
      */
     protected void unloadSections() {
+	VMKernel.vmLock.acquire();
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.freeSwapSlot(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
 	super.unloadSections();
-    }    
+
+	VMKernel.vmLock.release();
+
+	coff.close();
+    }
+
+    /**
+     * Transfer data from this process's virtual memory to the specified
+     * array, first loading any pages of the range that are not resident.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	int numPinned = pinRange(vaddr, length, false);
+	int result = super.readVirtualMemory(vaddr, data, offset, length);
+	unpinRange(vaddr, numPinned);
+
+	return result;
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual
+     * memory, first loading any pages of the range that are not resident.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	int numPinned = pinRange(vaddr, length, true);
+	int result = super.writeVirtualMemory(vaddr, data, offset, length);
+	unpinRange(vaddr, numPinned);
+
+	return result;
+    }
+
+    /**
+     * Build the scatter/gather list for a user buffer, first loading any
+     * pages of the buffer that are not resident. The pages stay pinned until
+     * <tt>releasePhysicalRuns()</tt> is called.
+     */
+    protected int[] getPhysicalRuns(int vaddr, int length, boolean writing) {
+	int numPinned = pinRange(vaddr, length, writing);
+	int[] runs = super.getPhysicalRuns(vaddr, length, writing);
+
+	if (runs == null)
+	    unpinRange(vaddr, numPinned);
+
+	return runs;
+    }
+
+    /**
+     * Unpin the pages pinned by <tt>getPhysicalRuns()</tt>.
+     */
+    protected void releasePhysicalRuns(int vaddr, int length) {
+	unpinRange(vaddr, Processor.pageFromAddress(vaddr + length - 1)
+		   - Processor.pageFromAddress(vaddr) + 1);
+    }
+
+    /**
+     * Make every mapped page overlapping the specified range resident and
+     * pin it, so the kernel can copy to or from it. Stops at the first page
+     * that is not part of the address space or cannot be loaded, or that is
+     * read-only if the kernel is going to write. Copy-on-write pages are
+     * copied before they are pinned for writing.
+     *
+     * @return	the number of pages pinned, starting with the first.
+     */
+    private int pinRange(int vaddr, int length, boolean writing) {
+	if (vaddr < 0 || length <= 0 || vaddr + length - 1 < vaddr)
+	    return 0;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+	int numPinned = 0;
+
+	VMKernel.vmLock.acquire();
+
+	for (int vpn=firstVPN; vpn<=lastVPN; vpn++) {
+	    if (!faultIn(vpn))
+		break;
+
+	    if (writing && pageTable[vpn].readOnly && !copyOnWrite(vpn))
+		break;
+
+	    UserKernel.pinPhysicalPage(pageTable[vpn].ppn);
+	    if (writing)
+		pageTable[vpn].dirty = true;
+
+	    numPinned++;
+	}
+
+	VMKernel.vmLock.release();
+
+	return numPinned;
+    }
+
+    /**
+     * Unpin the first <i>numPinned</i> pages starting at the specified
+     * address, pinned by <tt>pinRange()</tt>.
+     */
+    private void unpinRange(int vaddr, int numPinned) {
+	if (numPinned <= 0)
+	    return;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+
+	VMKernel.vmLock.acquire();
+
+	for (int vpn=firstVPN; vpn<firstVPN+numPinned; vpn++)
+	    UserKernel.unpinPhysicalPage(pageTable[vpn].ppn);
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Make the specified virtual page resident. A page that was swapped out
+     * is read from the swap file; otherwise it is loaded from a mapped file or
+     * the executable, or zero-filled. The caller must hold the VM lock.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	<tt>true</tt> if the page is now resident, or <tt>false</tt>
+     *		if it is not part of the address space or no physical page
+     *		can be freed.
+     */
+    protected boolean faultIn(int vpn) {
+	if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn].vpn != vpn)
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid)
+	    return true;
+
+	CoffSection section = sectionOf(vpn);
+	String key = sharedPageKey(vpn);
+	FileMapping mapping = mappingOf(vpn);
+
+	if (key != null) {
+	    int ppn = UserKernel.fetchSharedPage(key);
+	    if (ppn != -1) {
+		Lib.debug(dbgVM, "\tsharing " + key + " in ppn " + ppn);
+
+		UserKernel.mapPhysicalPage(ppn, this, vpn);
+		mapPage(vpn, ppn, section);
+		return true;
+	    }
+	}
+
+	int ppn = VMKernel.allocatePage(this, vpn);
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno physical page for vpn " + vpn);
+	    return false;
+	}
+
+	if (swapSlots[vpn] != -1) {
+	    Lib.debug(dbgVM, "\tswapping in vpn " + vpn + " from slot "
+		      + swapSlots[vpn] + " into ppn " + ppn);
+
+	    VMKernel.swapIn(swapSlots[vpn], ppn);
+	}
+	else if (mapping != null) {
+	    Lib.debug(dbgVM, "\treading mapped vpn " + vpn + " into ppn " + ppn);
+
+	    mapping.readPage(vpn, ppn);
+	}
+	else if (section != null) {
+	    Lib.debug(dbgVM, "\tloading " + section.getName() + " page "
+		      + (vpn - section.getFirstVPN()) + " into ppn " + ppn);
+
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    Lib.debug(dbgVM, "\tzero-filling vpn " + vpn + " into ppn " + ppn);
+
+	    Machine.processor().getMainMemory().fill(ppn*pageSize, pageSize,
+						     (byte) 0);
+	}
+
+	if (key != null)
+	    UserKernel.sharePhysicalPage(key, ppn);
+
+	mapPage(vpn, ppn, section);
+	return true;
+    }
+
+    /**
+     * Pages of a mapped file are loaded by <tt>faultIn()</tt>, like every
+     * other page, before the kernel touches them.
+     *
+     * @return	<tt>false</tt>.
+     */
+    protected boolean faultInMappedPage(int vpn) {
+	return false;
+    }
+
+    /**
+     * Remove a mapped file from the address space, first picking up the
+     * dirty bits of its pages from the TLB and dropping their TLB entries.
+     */
+    protected void unmapFile(FileMapping mapping) {
+	Processor processor = Machine.processor();
+
+	VMKernel.vmLock.acquire();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (processor.readTLBEntry(i).valid &&
+		mapping.contains(processor.readTLBEntry(i).vpn)) {
+		syncTLBEntry(i);
+		processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+	}
+
+	super.unmapFile(mapping);
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Point a page table entry at a physical page that now holds its
+     * contents.
+     */
+    private void mapPage(int vpn, int ppn, CoffSection section) {
+	TranslationEntry entry = pageTable[vpn];
+
+	// a new page gets a second chance before it can be evicted
+	entry.ppn = ppn;
+	entry.used = true;
+	entry.dirty = false;
+	entry.valid = true;
+
+	if (section != null && translations != null)
+	    translations.pageLoaded(vpn, ppn);
+    }
+
+    /**
+     * Make this new process a copy of the specified process, sharing its
+     * resident pages copy-on-write. Pages the parent has swapped out are
+     * copied to new swap slots for the child.
+     */
+    protected boolean forkFrom(UserProcess parent) {
+	VMProcess vmParent = (VMProcess) parent;
+	Processor processor = Machine.processor();
+
+	VMKernel.vmLock.acquire();
+
+	// the parent is running, so its latest used and dirty bits are in the TLB
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    vmParent.syncTLBEntry(i);
+
+	if (!super.forkFrom(parent)) {
+	    VMKernel.vmLock.release();
+	    return false;
+	}
+
+	swapSlots = new int[pageTable.length];
+	Arrays.fill(swapSlots, -1);
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    int parentSlot = vmParent.swapSlots[vpn];
+
+	    // the child can only get a resident page's data back from swap
+	    if (pageTable[vpn].valid && parentSlot != -1)
+		pageTable[vpn].dirty = true;
+	    else if (parentSlot != -1)
+		swapSlots[vpn] = VMKernel.copySwapSlot(parentSlot);
+	}
+
+	// the parent's pages are now read-only
+	TranslationEntry invalid = new TranslationEntry();
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, invalid);
+
+	VMKernel.vmLock.release();
+	return true;
+    }
+
+    /**
+     * Make a copy-on-write page writable, copying it if it is still shared.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	VMKernel.vmLock.acquire();
+	boolean writable = faultIn(vpn) && copyOnWrite(vpn);
+	VMKernel.vmLock.release();
+
+	return writable;
+    }
+
+    /**
+     * Make a resident copy-on-write page writable. The caller must hold the
+     * VM lock.
+     */
+    private boolean copyOnWrite(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid || !isCopyOnWrite(vpn))
+	    return false;
+
+	if (UserKernel.physicalPageReferences(entry.ppn) > 1) {
+	    int oldPPN = entry.ppn;
+
+	    // keep the original resident while a page is found for the copy
+	    UserKernel.pinPhysicalPage(oldPPN);
+	    int ppn = VMKernel.allocatePage(this, vpn);
+	    UserKernel.unpinPhysicalPage(oldPPN);
+
+	    if (ppn == -1)
+		return false;
+
+	    Lib.debug(dbgVM, "\tcopying vpn " + vpn + " from ppn " + oldPPN
+		      + " to ppn " + ppn);
+
+	    copyPhysicalPage(oldPPN, ppn);
+
+	    UserKernel.unmapPhysicalPages(new int[] { oldPPN }, 1, this);
+	    UserKernel.addPhysicalPage(oldPPN);
+
+	    entry.ppn = ppn;
+	    entry.used = true;
+
+	    if (translations != null && sectionOf(vpn) != null) {
+		translations.pageUnloaded(vpn);
+		translations.pageLoaded(vpn, ppn);
+	    }
+	}
+
+	entry.readOnly = false;
+	entry.dirty = true;
+
+	int tlbIndex = findTLBEntry(vpn);
+	if (tlbIndex != -1)
+	    Machine.processor().writeTLBEntry(tlbIndex, entry);
+
+	return true;
+    }
+
+    /**
+     * Test and clear the used bit of a resident page, for the clock
+     * algorithm. The caller must hold the VM lock.
+     *
+     * @param	vpn	the virtual page to test.
+     * @return	<tt>true</tt> if the page had been used since the last call.
+     */
+    boolean clearUsed(int vpn) {
+	int tlbIndex = findTLBEntry(vpn);
+	if (tlbIndex != -1)
+	    syncTLBEntry(tlbIndex);
+
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.used)
+	    return false;
+
+	entry.used = false;
+	if (tlbIndex != -1)
+	    Machine.processor().writeTLBEntry(tlbIndex, entry);
+
+	return true;
+    }
+
+    /**
+     * Remove a resident page from this process's address space, writing it
+     * to the swap file first if it is dirty, or back to its file if it is
+     * part of a mapped file. Clean pages are dropped: they are still in the
+     * swap file if they were swapped in, and otherwise can be loaded again
+     * from a mapped file or the executable, or zero-filled. The caller must
+     * hold the VM lock.
+     *
+     * @param	vpn	the virtual page to evict.
+     */
+    void evict(int vpn) {
+	int tlbIndex = findTLBEntry(vpn);
+	if (tlbIndex != -1) {
+	    syncTLBEntry(tlbIndex);
+	    Machine.processor().writeTLBEntry(tlbIndex, new TranslationEntry());
+	}
+
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	FileMapping mapping = mappingOf(vpn);
+
+	if (entry.dirty && mapping != null) {
+	    Lib.debug(dbgVM, "\twriting back mapped vpn " + vpn + " from ppn "
+		      + entry.ppn);
+
+	    mapping.writePage(vpn, entry.ppn);
+	}
+	else if (entry.dirty) {
+	    Lib.debug(dbgVM, "\tswapping out vpn " + vpn + " from ppn "
+		      + entry.ppn);
+
+	    swapSlots[vpn] = VMKernel.swapOut(entry.ppn, swapSlots[vpn]);
+	}
+
+	if (translations != null)
+	    translations.pageUnloaded(vpn);
+
+	entry.valid = false;
+	entry.ppn = -1;
+	entry.used = false;
+	entry.dirty = false;
+    }
+
+    /**
+     * Return the index of the TLB entry mapping the specified virtual page
+     * of this process, or -1 if there is none. Only the running process has
+     * entries in the TLB.
+     */
+    private int findTLBEntry(int vpn) {
+	if (UserKernel.currentProcess() != this)
+	    return -1;
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == vpn)
+		return i;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back into the page table.
+     *
+     * @param	index	the TLB entry to copy from.
+     */
+    protected void syncTLBEntry(int index) {
+	TranslationEntry tlbEntry = Machine.processor().readTLBEntry(index);
+	if (!tlbEntry.valid)
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	if (entry.valid && entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
+
+    /**
+     * Handle a TLB miss by loading the page if necessary and copying its page
+     * table entry into the TLB, over the entry chosen by
+     * <tt>chooseTLBVictim()</tt>. If prefetching is enabled and the next page
+     * is resident, its entry is loaded too, so sequential code and data miss
+     * half as often.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>true</tt> if the miss was handled.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	VMKernel.vmLock.acquire();
+
+	if (!faultIn(vpn)) {
+	    VMKernel.vmLock.release();
+	    return false;
+	}
+
+	Processor processor = Machine.processor();
+
+	int index = chooseTLBVictim(-1);
+	processor.writeTLBEntry(index, pageTable[vpn]);
+
+	int next = vpn + 1;
+	if (VMKernel.tlbPrefetch && processor.getTLBSize() > 1 &&
+	    next < pageTable.length && pageTable[next].valid &&
+	    findTLBEntry(next) == -1) {
+	    // not used yet, as far as NRU is concerned
+	    TranslationEntry entry = new TranslationEntry(pageTable[next]);
+	    entry.used = false;
+
+	    processor.writeTLBEntry(chooseTLBVictim(index), entry);
+	}
+
+	VMKernel.vmLock.release();
+	return true;
+    }
+
+    /**
+     * Choose a TLB entry to replace, and copy its used and dirty bits back
+     * into the page table. An invalid entry is chosen if there is one;
+     * otherwise the entry is chosen by <tt>VMKernel.tlbReplacement</tt>.
+     *
+     * @param	keep	an entry that must not be chosen, or -1.
+     * @return	the TLB entry to replace.
+     */
+    private int chooseTLBVictim(int keep) {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	for (int i=0; i<tlbSize; i++) {
+	    if (i != keep && !processor.readTLBEntry(i).valid)
+		return i;
+	}
+
+	int victim = -1;
+
+	switch (VMKernel.tlbReplacement) {
+	case VMKernel.tlbRandom:
+	    do {
+		victim = Lib.random(tlbSize);
+	    } while (victim == keep);
+	    break;
+
+	case VMKernel.tlbNRU:
+	    for (int i=0; i<tlbSize && victim == -1; i++) {
+		int index = (nextTLBVictim + i) % tlbSize;
+		if (index != keep && !processor.readTLBEntry(index).used)
+		    victim = index;
+	    }
+
+	    // every entry was used: start a new period
+	    if (victim == -1) {
+		for (int i=0; i<tlbSize; i++) {
+		    syncTLBEntry(i);
+
+		    TranslationEntry entry = processor.readTLBEntry(i);
+		    entry.used = false;
+		    processor.writeTLBEntry(i, entry);
+		}
+	    }
+	    break;
+	}
+
+	// FIFO, and NRU when every entry was used, take the next entry in turn
+	if (victim == -1) {
+	    victim = nextTLBVictim;
+	    if (victim == keep)
+		victim = (victim + 1) % tlbSize;
+	}
+
+	if (VMKernel.tlbReplacement != VMKernel.tlbRandom)
+	    nextTLBVictim = (victim + 1) % tlbSize;
+
+	syncTLBEntry(victim);
+	return victim;
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +670,25 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /** The swap slot holding each virtual page, or -1 if it has none. */
+    private int[] swapSlots;
+
+    private int nextTLBVictim = 0;
+
+    /** The process whose entries the TLB holds. */
+    private static VMProcess tlbOwner = null;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';